@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,11 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[8];
+		pendingTimes = new long[8];
+		pendingIds = new long[8];
+		numPending = 0;
+		nextDeadline = Long.MAX_VALUE;
 	}
 
 	/**
@@ -119,6 +121,36 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Wait for the next interrupt, like a halt instruction. Instead of ticking
+	 * the clock until something is due, advance the simulated time straight
+	 * to the earliest pending interrupt and invoke the handlers that are due.
+	 * The skipped time is counted as kernel time. If no interrupt is pending,
+	 * this just ticks the clock once. Interrupts must be enabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(enabled);
+
+		if (numPending == 0) {
+			tick(true);
+			return;
+		}
+
+		Stats stats = privilege.stats;
+		long skip = nextDeadline - stats.totalTicks;
+		if (skip > 0) {
+			stats.kernelTicks += skip;
+			stats.totalTicks += skip;
+		}
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Idle to " + stats.totalTicks + " ==");
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
@@ -128,7 +160,7 @@ public final class Interrupt {
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		addPending(toOccur);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +183,30 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private void tickUser(int numInstructions) {
+		Lib.assertTrue(numInstructions >= 0);
+		Lib.assertTrue((long) numInstructions * Stats.UserTick <= timeUntilNextInterrupt());
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += (long) numInstructions * Stats.UserTick;
+		stats.totalTicks += (long) numInstructions * Stats.UserTick;
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Tick " + stats.totalTicks + " ==");
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private long timeUntilNextInterrupt() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return nextDeadline - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,18 +215,13 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDeadline > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (nextDeadline <= time) {
+			PendingInterrupt next = removeFirstPending();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -190,8 +241,10 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (PendingInterrupt toOccur : sorted) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,6 +252,92 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
+	/**
+	 * Add an interrupt to the pending heap.
+	 * 
+	 * @param toOccur the interrupt to add.
+	 */
+	private void addPending(PendingInterrupt toOccur) {
+		if (numPending == pending.length) {
+			pending = Arrays.copyOf(pending, numPending * 2);
+			pendingTimes = Arrays.copyOf(pendingTimes, numPending * 2);
+			pendingIds = Arrays.copyOf(pendingIds, numPending * 2);
+		}
+
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(toOccur.time, toOccur.id, parent))
+				break;
+
+			setPending(i, pending[parent]);
+			i = parent;
+		}
+		setPending(i, toOccur);
+
+		nextDeadline = pendingTimes[0];
+	}
+
+	/**
+	 * Remove and return the earliest pending interrupt. There must be one.
+	 * 
+	 * @return the earliest pending interrupt.
+	 */
+	private PendingInterrupt removeFirstPending() {
+		Lib.assertTrue(numPending > 0);
+
+		PendingInterrupt first = pending[0];
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		if (numPending > 0) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numPending)
+					break;
+
+				if (child + 1 < numPending
+						&& before(pendingTimes[child + 1],
+								pendingIds[child + 1], child))
+					child++;
+
+				if (!before(pendingTimes[child], pendingIds[child], last))
+					break;
+
+				setPending(i, pending[child]);
+				i = child;
+			}
+			setPending(i, last);
+		}
+
+		nextDeadline = (numPending > 0 ? pendingTimes[0] : Long.MAX_VALUE);
+		return first;
+	}
+
+	/**
+	 * Test whether an interrupt with the given time and id occurs before the
+	 * one at position <i>index</i> in the heap.
+	 */
+	private boolean before(long time, long id, int index) {
+		return time < pendingTimes[index]
+				|| (time == pendingTimes[index] && id < pendingIds[index]);
+	}
+
+	/**
+	 * Test whether an interrupt with the given time and id occurs before
+	 * <i>toOccur</i>.
+	 */
+	private boolean before(long time, long id, PendingInterrupt toOccur) {
+		return time < toOccur.time || (time == toOccur.time && id < toOccur.id);
+	}
+
+	private void setPending(int index, PendingInterrupt toOccur) {
+		pending[index] = toOccur;
+		pendingTimes[index] = toOccur.time;
+		pendingIds[index] = toOccur.id;
+	}
+
 	private class PendingInterrupt implements Comparable {
 		PendingInterrupt(long time, String type, Runnable handler) {
 			this.time = time;
@@ -238,7 +377,24 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * The pending interrupts, as a binary min-heap ordered by time and then by
+	 * creation order. The keys of each entry are copied into
+	 * <tt>pendingTimes</tt> and <tt>pendingIds</tt>.
+	 */
+	private PendingInterrupt[] pending;
+
+	private long[] pendingTimes;
+
+	private long[] pendingIds;
+
+	private int numPending;
+
+	/**
+	 * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if there is none.
+	 */
+	private long nextDeadline;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +406,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tickUser(int numInstructions) {
+			Interrupt.this.tickUser(numInstructions);
+		}
+
+		public long timeUntilNextInterrupt() {
+			return Interrupt.this.timeUntilNextInterrupt();
+		}
 	}
 }
@@ -0,0 +1,121 @@
+package nachos.machine;
+
+/**
+ * A histogram of non-negative tick counts, in the style of HdrHistogram.
+ * Values are counted in buckets whose width grows with the magnitude of the
+ * value, so that every bucket spans at most about 3% of the values in it.
+ * Recording a value takes constant time, and the histogram has a fixed size
+ * however large the values get.
+ */
+public final class LatencyHistogram {
+	/**
+	 * Allocate a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new long[numBuckets];
+	}
+
+	/**
+	 * Count one occurrence of the specified value.
+	 * 
+	 * @param value the value to record, which must be non-negative.
+	 */
+	public void record(long value) {
+		Lib.assertTrue(value >= 0);
+
+		counts[bucket(value)]++;
+		count++;
+		total += value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Return the number of values recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Return the largest value recorded, or 0 if there is none.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Return the mean of the values recorded, or 0 if there is none.
+	 */
+	public double getMean() {
+		return (count == 0 ? 0 : (double) total / count);
+	}
+
+	/**
+	 * Return the value below which the specified percentage of the recorded
+	 * values fall. This is the highest value of the bucket holding the value
+	 * of that rank, but never more than the largest value recorded.
+	 * 
+	 * @param percentile the percentage, between 0 and 100.
+	 * @return the value at that percentile, or 0 if no value was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		Lib.assertTrue(percentile >= 0 && percentile <= 100);
+
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < numBuckets; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), max);
+		}
+
+		return max;
+	}
+
+	/**
+	 * Summarize this histogram on one line.
+	 */
+	public String toString() {
+		return "count " + count + ", mean " + Math.round(getMean()) + ", p50 "
+				+ getPercentile(50) + ", p90 " + getPercentile(90) + ", p99 "
+				+ getPercentile(99) + ", max " + max;
+	}
+
+	/**
+	 * Return the bucket of a value. Values below <tt>2*subBuckets</tt> get a
+	 * bucket each. Above that, each power of two is split into
+	 * <tt>subBuckets</tt> buckets, indexed by the value's top bits.
+	 */
+	private static int bucket(long value) {
+		int shift = Math.max(0,
+				63 - Long.numberOfLeadingZeros(value) - subBucketBits);
+		return (shift << subBucketBits) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Return the highest value that falls in the specified bucket.
+	 */
+	private static long highestValue(int bucket) {
+		int shift = Math.max(0, (bucket >> subBucketBits) - 1);
+		long top = bucket - (shift << subBucketBits);
+		return ((top + 1) << shift) - 1;
+	}
+
+	private static final int subBucketBits = 5;
+
+	private static final int subBuckets = 1 << subBucketBits;
+
+	private static final int numBuckets = (64 - subBucketBits) * subBuckets;
+
+	private long[] counts;
+
+	private long count = 0;
+
+	private long total = 0;
+
+	private long max = 0;
+}
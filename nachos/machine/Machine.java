@@ -451,6 +451,19 @@ public final class Machine {
         public static void incrNumSwapReads() { stats.numSwapReads++; }
         public static void incrNumSwapWrites() { stats.numSwapWrites++; }
         public static void incrNumSwapSkips() { stats.numSwapSkips++; }
+        public static void recordThreadTicks(String scheduler, int state, long ticks) { stats.recordThreadTicks(scheduler, state, ticks); }
+        public static LatencyHistogram getThreadTicks(String scheduler, int state) { return stats.getThreadTicks(scheduler, state); }
+
+	/**
+	 * Return a snapshot of the machine's counters, so that a kernel can report
+	 * on its own runs. The snapshot is a copy, so changing it does not affect
+	 * the machine, and it does not change as the machine runs.
+	 * 
+	 * @return a copy of the counters that <tt>halt()</tt> prints.
+	 */
+	public static Stats getStats() {
+		return stats.copyCounters();
+	}
 
 	private static int numPhysPages = -1;
 
@@ -0,0 +1,553 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiles straight-line runs of MIPS instructions into JVM classes, for the
+ * <tt>jit</tt> engine of <tt>Processor</tt>.
+ *
+ * <p>
+ * A compiled region is a sequence of instructions that never branch and never
+ * trap on their own: the non-overflowing ALU operations, <tt>mult</tt>, moves
+ * to and from <tt>lo</tt>/<tt>hi</tt>, and aligned loads and stores. The
+ * generated code reads and writes the processor register array directly.
+ * Loads and stores call back into the processor, which sets the PC to the
+ * instruction being executed before touching memory, so a page fault or TLB
+ * miss leaves the registers exactly as the interpreter would have. Delayed
+ * loads are scheduled through the same callbacks, and every instruction that
+ * follows a load completes it at the point <tt>writeBack()</tt> would.
+ *
+ * <p>
+ * Arithmetic is done with the same widening to <tt>long</tt> that
+ * <tt>Instruction.execute()</tt> uses, so results match the interpreter bit
+ * for bit. Classes are generated as version 49 class files, which do not need
+ * stack map frames, and defined as hidden classes in this package.
+ */
+final class MipsCompiler {
+	private MipsCompiler() {
+	}
+
+	/**
+	 * Test whether an instruction can be part of a compiled region.
+	 *
+	 * @param inst the decoded instruction.
+	 * @return <tt>true</tt> if <tt>compile()</tt> can translate it.
+	 */
+	static boolean canCompile(Processor.Decoded inst) {
+		if (Lib.test(Processor.Mips.OVERFLOW, inst.flags)
+				|| Lib.test(Processor.Mips.BRANCH, inst.flags))
+			return false;
+
+		switch (inst.operation) {
+		case Processor.Mips.ADD:
+		case Processor.Mips.SUB:
+		case Processor.Mips.MULT:
+		case Processor.Mips.SLL:
+		case Processor.Mips.SRA:
+		case Processor.Mips.SRL:
+		case Processor.Mips.SLT:
+		case Processor.Mips.AND:
+		case Processor.Mips.OR:
+		case Processor.Mips.NOR:
+		case Processor.Mips.XOR:
+		case Processor.Mips.LUI:
+		case Processor.Mips.MFLO:
+		case Processor.Mips.MFHI:
+		case Processor.Mips.MTLO:
+		case Processor.Mips.MTHI:
+		case Processor.Mips.LOAD:
+		case Processor.Mips.STORE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Compile a run of instructions into a new class and return an instance of
+	 * it. Every instruction must satisfy <tt>canCompile()</tt>.
+	 *
+	 * @param insts the decoded instructions, in address order.
+	 * @param length the number of instructions to compile.
+	 * @return the compiled region.
+	 */
+	static Processor.CompiledRegion compile(Processor.Decoded[] insts,
+			int length) {
+		MipsCompiler compiler = new MipsCompiler();
+
+		for (int i = 0; i < length; i++) {
+			// the first instruction may follow a load the interpreter started
+			compiler.emit(insts[i], i, i == 0 || isLoad(insts[i - 1]));
+		}
+
+		compiler.emitExit(length);
+
+		byte[] bytes = compiler.classFile();
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClass(bytes, true);
+
+			return (Processor.CompiledRegion) lookup.findConstructor(
+					lookup.lookupClass(), MethodType.methodType(void.class))
+					.invoke();
+		}
+		catch (Throwable e) {
+			Lib.assertNotReached("could not define compiled region: " + e);
+			return null;
+		}
+	}
+
+	private static boolean isLoad(Processor.Decoded inst) {
+		return inst.operation == Processor.Mips.LOAD;
+	}
+
+	/**
+	 * Emit the code for one instruction.
+	 *
+	 * @param inst the instruction.
+	 * @param index the index of the instruction within the region.
+	 * @param finishLoad <tt>true</tt> if a delayed load may be in progress,
+	 * and must be completed after this instruction reads its sources.
+	 */
+	private void emit(Processor.Decoded inst, int index, boolean finishLoad) {
+		boolean writesDst = Lib.test(Processor.Mips.DST, inst.flags)
+				&& inst.dstReg != 0;
+		boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, inst.flags);
+
+		switch (inst.operation) {
+		case Processor.Mips.LOAD:
+			// cpu.load(pc, registers[rs] + imm, size, unsigned, rt)
+			code(ALOAD_2);
+			pushPC(index);
+			pushAddress(inst);
+			pushInt(inst.size);
+			pushInt(unsigned ? 1 : 0);
+			pushInt(inst.dstReg);
+			invoke("load", "(IIIZI)V");
+			return;
+
+		case Processor.Mips.STORE:
+			// if (cpu.store(pc, registers[rs] + imm, size, registers[rt]))
+			// leave the region, because it may have overwritten itself
+			code(ALOAD_2);
+			pushPC(index);
+			pushAddress(inst);
+			pushInt(inst.size);
+			pushRegister(inst.rt);
+			invoke("store", "(IIII)Z");
+
+			int branch = code.size();
+			code(IFEQ);
+			code(0);
+			code(0);
+			emitExit(index + 1);
+			int offset = code.size() - branch;
+			code.set(branch + 1, (offset >> 8) & 0xFF);
+			code.set(branch + 2, offset & 0xFF);
+			return;
+
+		case Processor.Mips.MULT:
+			pushSource(inst.rs, unsigned);
+			pushSource(inst.rt, unsigned);
+			code(LMUL);
+			code(LSTORE);
+			code(4);
+			// registers[regLo] = (int) product
+			code(ALOAD_1);
+			pushInt(Processor.regLo);
+			code(LLOAD);
+			code(4);
+			code(L2I);
+			code(IASTORE);
+			// registers[regHi] = (int) (product >> 32)
+			code(ALOAD_1);
+			pushInt(Processor.regHi);
+			code(LLOAD);
+			code(4);
+			pushInt(32);
+			code(LSHR);
+			code(L2I);
+			code(IASTORE);
+			break;
+
+		case Processor.Mips.MTLO:
+		case Processor.Mips.MTHI:
+			code(ALOAD_1);
+			pushInt(inst.operation == Processor.Mips.MTLO ? Processor.regLo
+					: Processor.regHi);
+			pushRegister(inst.rs);
+			code(IASTORE);
+			break;
+
+		default:
+			if (writesDst) {
+				code(ALOAD_1);
+				pushInt(inst.dstReg);
+				pushResult(inst, unsigned);
+				if (finishLoad)
+					emitFinishLoad();
+				code(IASTORE);
+				return;
+			}
+			break;
+		}
+
+		if (finishLoad)
+			emitFinishLoad();
+	}
+
+	/**
+	 * Push the 32-bit result of an ALU instruction that writes a register.
+	 */
+	private void pushResult(Processor.Decoded inst, boolean unsigned) {
+		switch (inst.operation) {
+		case Processor.Mips.ADD:
+			pushRegister(inst.rs);
+			pushSrc2(inst);
+			code(IADD);
+			break;
+		case Processor.Mips.SUB:
+			pushRegister(inst.rs);
+			pushSrc2(inst);
+			code(ISUB);
+			break;
+		case Processor.Mips.AND:
+			pushRegister(inst.rs);
+			pushSrc2(inst);
+			code(IAND);
+			break;
+		case Processor.Mips.OR:
+			pushRegister(inst.rs);
+			pushSrc2(inst);
+			code(IOR);
+			break;
+		case Processor.Mips.XOR:
+			pushRegister(inst.rs);
+			pushSrc2(inst);
+			code(IXOR);
+			break;
+		case Processor.Mips.NOR:
+			pushRegister(inst.rs);
+			pushSrc2(inst);
+			code(IOR);
+			code(ICONST_M1);
+			code(IXOR);
+			break;
+		case Processor.Mips.LUI:
+			pushInt(inst.imm << 16);
+			break;
+		case Processor.Mips.SLL:
+			pushRegister(inst.rt);
+			pushShiftAmount(inst);
+			code(ISHL);
+			break;
+		case Processor.Mips.SRA:
+			pushRegister(inst.rt);
+			pushShiftAmount(inst);
+			code(ISHR);
+			break;
+		case Processor.Mips.SRL:
+			// the interpreter shifts the sign-extended long
+			pushSource(inst.rt, false);
+			pushShiftAmount(inst);
+			code(LUSHR);
+			code(L2I);
+			break;
+		case Processor.Mips.SLT:
+			// both sides fit in 33 bits, so the sign of the difference is
+			// the result of the comparison
+			pushSource(inst.rs, unsigned);
+			if (Lib.test(Processor.Mips.SRC2IMM, inst.flags)) {
+				pushInt(inst.imm);
+				widen(unsigned);
+			}
+			else {
+				pushSource(inst.rt, unsigned);
+			}
+			code(LSUB);
+			pushInt(63);
+			code(LUSHR);
+			code(L2I);
+			break;
+		case Processor.Mips.MFLO:
+			pushRegister(Processor.regLo);
+			break;
+		case Processor.Mips.MFHI:
+			pushRegister(Processor.regHi);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+	}
+
+	private void pushSrc2(Processor.Decoded inst) {
+		if (Lib.test(Processor.Mips.SRC2IMM, inst.flags))
+			pushInt(inst.imm);
+		else
+			pushRegister(inst.rt);
+	}
+
+	private void pushShiftAmount(Processor.Decoded inst) {
+		if (Lib.test(Processor.Mips.SRC1SH, inst.flags)) {
+			pushInt(inst.sh);
+		}
+		else {
+			pushRegister(inst.rs);
+			pushInt(0x1F);
+			code(IAND);
+		}
+	}
+
+	/** Push a register widened to a long, as the interpreter's src1/src2. */
+	private void pushSource(int register, boolean unsigned) {
+		pushRegister(register);
+		widen(unsigned);
+	}
+
+	private void widen(boolean unsigned) {
+		code(I2L);
+		if (unsigned) {
+			pushInt(32);
+			code(LSHL);
+			pushInt(32);
+			code(LUSHR);
+		}
+	}
+
+	/** Push <tt>registers[rs] + imm</tt>. */
+	private void pushAddress(Processor.Decoded inst) {
+		pushRegister(inst.rs);
+		pushInt(inst.imm);
+		code(IADD);
+	}
+
+	/** Push the virtual address of the instruction at <i>index</i>. */
+	private void pushPC(int index) {
+		code(ILOAD_3);
+		if (index != 0) {
+			pushInt(index * 4);
+			code(IADD);
+		}
+	}
+
+	private void pushRegister(int register) {
+		code(ALOAD_1);
+		pushInt(register);
+		code(IALOAD);
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			code(ICONST_0 + value);
+		}
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code(BIPUSH);
+			code(value & 0xFF);
+		}
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			code(SIPUSH);
+			code((value >> 8) & 0xFF);
+			code(value & 0xFF);
+		}
+		else {
+			int index = constant(3, value);
+			code(LDC_W);
+			code((index >> 8) & 0xFF);
+			code(index & 0xFF);
+		}
+	}
+
+	private void emitFinishLoad() {
+		code(ALOAD_2);
+		invoke("finishLoad", "()V");
+	}
+
+	/**
+	 * Leave the region, with the PC pointing at the instruction at
+	 * <i>index</i>.
+	 */
+	private void emitExit(int index) {
+		code(ALOAD_1);
+		pushInt(Processor.regPC);
+		pushPC(index);
+		code(IASTORE);
+		code(ALOAD_1);
+		pushInt(Processor.regNextPC);
+		pushPC(index + 1);
+		code(IASTORE);
+		code(RETURN);
+	}
+
+	private void invoke(String name, String descriptor) {
+		int index = methodRef(supportClass, name, descriptor);
+		code(INVOKEVIRTUAL);
+		code((index >> 8) & 0xFF);
+		code(index & 0xFF);
+	}
+
+	private void code(int b) {
+		code.add(b);
+	}
+
+	/**
+	 * Assemble the class file: a final class implementing
+	 * <tt>CompiledRegion</tt>, with a no-argument constructor and the
+	 * generated <tt>run()</tt> method.
+	 */
+	private byte[] classFile() {
+		int thisClass = classRef(className);
+		int superClass = classRef("java/lang/Object");
+		int iface = classRef(regionClass);
+		int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+		int initName = utf8("<init>");
+		int initType = utf8("()V");
+		int runName = utf8("run");
+		int runType = utf8("([IL" + supportClass + ";I)V");
+		int codeName = utf8("Code");
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+
+			out.writeShort(constants.size() + 1);
+			for (byte[] constant : constants)
+				out.write(constant);
+
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+
+			// no fields
+			out.writeShort(0);
+
+			out.writeShort(2);
+
+			byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL,
+					(byte) (objectInit >> 8), (byte) objectInit,
+					(byte) RETURN };
+			writeMethod(out, ACC_PUBLIC, initName, initType, codeName, 1, 1,
+					init);
+
+			byte[] run = new byte[code.size()];
+			for (int i = 0; i < run.length; i++)
+				run[i] = (byte) (int) code.get(i);
+			writeMethod(out, ACC_PUBLIC, runName, runType, codeName, 16, 6,
+					run);
+
+			// no class attributes
+			out.writeShort(0);
+
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	private static void writeMethod(DataOutputStream out, int access,
+			int name, int type, int codeName, int maxStack, int maxLocals,
+			byte[] code) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(type);
+		out.writeShort(1);
+
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		// no exception table, no code attributes
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	private int utf8(String value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(1);
+			out.writeUTF(value);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+		return constant("1:" + value, bytes.toByteArray());
+	}
+
+	private int classRef(String name) {
+		int nameIndex = utf8(name);
+		return constant("7:" + name, new byte[] { 7, (byte) (nameIndex >> 8),
+				(byte) nameIndex });
+	}
+
+	private int methodRef(String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int typeIndex = utf8(descriptor);
+		int nameAndType = constant("12:" + name + descriptor, new byte[] {
+				12, (byte) (nameIndex >> 8), (byte) nameIndex,
+				(byte) (typeIndex >> 8), (byte) typeIndex });
+		return constant("10:" + owner + "." + name + descriptor, new byte[] {
+				10, (byte) (ownerIndex >> 8), (byte) ownerIndex,
+				(byte) (nameAndType >> 8), (byte) nameAndType });
+	}
+
+	private int constant(int tag, int value) {
+		return constant(tag + ":" + value, new byte[] { (byte) tag,
+				(byte) (value >> 24), (byte) (value >> 16),
+				(byte) (value >> 8), (byte) value });
+	}
+
+	/** Add a constant pool entry, or find the existing one with this key. */
+	private int constant(String key, byte[] entry) {
+		Integer index = constantIndex.get(key);
+		if (index == null) {
+			constants.add(entry);
+			index = constants.size();
+			constantIndex.put(key, index);
+		}
+		return index;
+	}
+
+	private ArrayList<Integer> code = new ArrayList<Integer>();
+
+	private ArrayList<byte[]> constants = new ArrayList<byte[]>();
+
+	private HashMap<String, Integer> constantIndex = new HashMap<String, Integer>();
+
+	private static final String className = "nachos/machine/CompiledRegion";
+
+	private static final String regionClass = "nachos/machine/Processor$CompiledRegion";
+
+	private static final String supportClass = "nachos/machine/Processor$JitSupport";
+
+	private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010,
+			ACC_SUPER = 0x0020;
+
+	private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03,
+			BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LLOAD = 0x16,
+			ILOAD_3 = 0x1d, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c,
+			IALOAD = 0x2e, LSTORE = 0x37, IASTORE = 0x4f, IADD = 0x60,
+			ISUB = 0x64, LSUB = 0x65, LMUL = 0x69, ISHL = 0x78, LSHL = 0x79,
+			ISHR = 0x7a, LSHR = 0x7b, LUSHR = 0x7d, IAND = 0x7e, IOR = 0x80,
+			IXOR = 0x82, I2L = 0x85, L2I = 0x88, IFEQ = 0x99, RETURN = 0xb1,
+			INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7;
+}
@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,12 +44,37 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engineName = Config.getString("Processor.engine", "interpreter");
+		if (engineName.equals("interpreter"))
+			engine = engineInterpreter;
+		else if (engineName.equals("block"))
+			engine = engineBlock;
+		else if (engineName.equals("jit"))
+			engine = engineJit;
+		else
+			Lib.assertNotReached("unknown Processor.engine: " + engineName);
+
+		jitThreshold = Config.getInteger("Processor.jitThreshold", 50);
+		batchSize = Config.getInteger("Processor.batchSize", 10000);
+		Lib.assertTrue(batchSize > 0);
+
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbWays = Config.getInteger("Processor.tlbAssociativity", tlbSize);
+		Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new Decoded[numPhysPages][];
+
+		if (engine == engineJit) {
+			compiledPages = new JitRegion[numPhysPages][];
+			entryCounts = new int[numPhysPages][];
+			jitSupport = new JitSupport();
+		}
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -93,6 +122,15 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// the instruction traces are only produced by the reference interpreter
+		boolean tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+
+		if (engine != engineInterpreter && !tracing) {
+			while (true)
+				runBatch(inst);
+		}
+
 		while (true) {
 			try {
 				inst.run();
@@ -105,6 +143,99 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute a batch of instructions starting at the current PC, and then
+	 * advance the simulated time for all of them at once.
+	 * 
+	 * <p>
+	 * The batch is made of blocks, each running over the decoded instruction
+	 * cache from one translation of the PC. A block ends after the first
+	 * instruction that does not fall through to the next word (the delay
+	 * slot of a taken branch or jump) and at the end of the code page, and
+	 * the next block starts from a fresh translation. The batch ends when
+	 * <tt>Processor.batchSize</tt> instructions have run, before the next
+	 * pending interrupt falls due, or at the first instruction that raises an
+	 * exception (including <tt>syscall</tt>). The instructions before it are
+	 * charged before the exception handler runs, so the kernel always sees
+	 * exactly the time the reference interpreter would show, and interrupts
+	 * are delivered at the same simulated times. Delayed loads and branch
+	 * delay slots go through the same <tt>writeBack()</tt> as there.
+	 * 
+	 * <p>
+	 * With the <tt>jit</tt> engine, block entries are counted, and once an
+	 * entry has been seen <tt>Processor.jitThreshold</tt> times the
+	 * straight-line run of instructions starting there is compiled by
+	 * <tt>MipsCompiler</tt>. Compiled regions are entered whenever the block
+	 * reaches their first instruction outside a delay slot, and only if the
+	 * whole region fits in what is left of the batch. A region that traps leaves
+	 * the PC at the trapping instruction, so it is charged and handled exactly
+	 * as in the interpreter.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runBatch(Instruction inst) {
+		long budget = Math.min(privilege.interrupt.timeUntilNextInterrupt()
+				/ Stats.UserTick, batchSize);
+		int executed = 0;
+
+		try {
+			while (executed < budget) {
+				int pc = registers[regPC];
+				int paddr = translate(pc, 4, false, true);
+				boolean blockEntry = true;
+
+				while (true) {
+					JitRegion region = null;
+					if (engine == engineJit)
+						region = findRegion(paddr, blockEntry);
+					blockEntry = false;
+
+					if (region != null
+							&& region.words.length <= budget - executed
+							&& registers[regNextPC] == pc + 4
+							&& region.matches(paddr)) {
+						try {
+							region.code.run(registers, jitSupport, pc);
+						}
+						finally {
+							executed += (registers[regPC] - pc) / 4;
+						}
+
+						int nextPC = registers[regPC];
+						if (executed >= budget
+								|| offsetFromAddress(nextPC) == 0)
+							break;
+
+						paddr += nextPC - pc;
+						pc = nextPC;
+						continue;
+					}
+
+					inst.run(paddr);
+					executed++;
+
+					int nextPC = registers[regPC];
+					if (executed >= budget || nextPC != pc + 4
+							|| offsetFromAddress(nextPC) == 0)
+						break;
+
+					pc = nextPC;
+					paddr += 4;
+				}
+			}
+		}
+		catch (MipsException e) {
+			if (executed > 0)
+				privilege.interrupt.tickUser(executed);
+
+			e.handle();
+			privilege.interrupt.tick(false);
+			return;
+		}
+
+		privilege.interrupt.tickUser(executed);
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -188,6 +319,22 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. If this
+	 * is equal to <tt>getTLBSize()</tt>, the TLB is fully associative.
+	 * Otherwise, the entry for virtual page <i>vpn</i> must be placed in set
+	 * <tt>vpn % (getTLBSize() / getTLBAssociativity())</tt>, which holds TLB
+	 * entries <tt>set * getTLBAssociativity()</tt> through
+	 * <tt>(set+1) * getTLBAssociativity() - 1</tt>.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +352,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * By default the TLB is fully associative, so the location of an entry
+	 * within the TLB does not affect anything. If it is set associative, a
+	 * valid entry must be written into the set for its virtual page; see
+	 * <tt>getTLBAssociativity()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,8 +363,17 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid || tlbSet(entry.vpn) == number / tlbWays);
 
 		translations[number] = new TranslationEntry(entry);
+		lastTranslation[0] = lastTranslation[1] = null;
+	}
+
+	/**
+	 * Return the TLB set that holds the entry for virtual page <i>vpn</i>.
+	 */
+	private int tlbSet(int vpn) {
+		return (int) ((vpn & 0xFFFFFFFFL) % (tlbSize / tlbWays));
 	}
 
 	/**
@@ -278,20 +436,170 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Return the decoded form of the instruction word <i>value</i>, which was
+	 * fetched from physical address <i>paddr</i>. The result is looked up in
+	 * the decoded instruction cache first, and only decoded from scratch on a
+	 * miss.
+	 * 
+	 * <p>
+	 * Cache entries remember the word they were decoded from, and a hit
+	 * requires the word to still match. The kernel writes physical memory
+	 * directly through <tt>getMemory()</tt> (loading sections, swapping pages
+	 * in), so this check is what keeps a reused physical page from executing
+	 * the previous contents.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the instruction word at that address.
+	 * @return the decoded instruction.
+	 */
+	private Decoded getDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) / 4;
+
+		Decoded[] page = decodedPages[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodedPages[ppn] = page;
+		}
+
+		Decoded info = page[index];
+		if (info == null || info.value != value) {
+			info = new Decoded(value);
+			page[index] = info;
+		}
+
+		return info;
+	}
+
+	/**
+	 * Drop the cached decoding of the word at physical address <i>paddr</i>,
+	 * and any code compiled from its page, after the program has stored to
+	 * it.
+	 * 
+	 * @param paddr the physical address that was written.
+	 * @return <tt>true</tt> if compiled code was discarded.
+	 */
+	private boolean invalidateCode(int paddr) {
+		int ppn = paddr / pageSize;
+
+		Decoded[] page = decodedPages[ppn];
+		if (page != null)
+			page[(paddr % pageSize) / 4] = null;
+
+		if (compiledPages != null && compiledPages[ppn] != null) {
+			compiledPages[ppn] = null;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the compiled region starting at physical address <i>paddr</i>, if
+	 * there is one. At a block entry, also count the entry, and compile the
+	 * region once the count reaches the threshold.
+	 * 
+	 * @param paddr the physical address of the current PC.
+	 * @param blockEntry <tt>true</tt> if a block starts at this address.
+	 * @return the compiled region, or <tt>null</tt> if there is none.
+	 */
+	private JitRegion findRegion(int paddr, boolean blockEntry) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) / 4;
+
+		JitRegion[] regions = compiledPages[ppn];
+		if (regions != null && regions[index] != null)
+			return (regions[index] == notCompilable ? null : regions[index]);
+
+		if (!blockEntry)
+			return null;
+
+		if (entryCounts[ppn] == null)
+			entryCounts[ppn] = new int[pageSize / 4];
+
+		if (++entryCounts[ppn][index] < jitThreshold)
+			return null;
+
+		entryCounts[ppn][index] = 0;
+
+		if (regions == null) {
+			regions = new JitRegion[pageSize / 4];
+			compiledPages[ppn] = regions;
+		}
+
+		regions[index] = compileRegion(paddr);
+		return (regions[index] == notCompilable ? null : regions[index]);
+	}
+
+	/**
+	 * Compile the longest run of compilable instructions that starts at
+	 * physical address <i>paddr</i> and stays within its page.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the compiled region, or <tt>notCompilable</tt> if the first
+	 * instruction cannot be compiled.
+	 */
+	private JitRegion compileRegion(int paddr) {
+		int first = (paddr % pageSize) / 4;
+		Decoded[] insts = new Decoded[pageSize / 4 - first];
+
+		int length = 0;
+		while (length < insts.length) {
+			int addr = paddr + length * 4;
+			Decoded info = getDecoded(addr, loadWord(addr));
+			if (!MipsCompiler.canCompile(info))
+				break;
+
+			insts[length++] = info;
+		}
+
+		if (length == 0)
+			return notCompilable;
+
+		Lib.debug(dbgJit, "compiling " + length + " instructions at paddr=0x"
+				+ Lib.toHexString(paddr));
+
+		int[] words = new int[length];
+		for (int i = 0; i < length; i++)
+			words[i] = insts[i].value;
+
+		return new JitRegion(MipsCompiler.compile(insts, length), words);
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * With a TLB, the entry used by the last instruction fetch and the one
+	 * used by the last data access are remembered, and a reference to the
+	 * same page is translated without searching the TLB. TLB entries are only
+	 * changed through <tt>writeTLBEntry()</tt>, which forgets both.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param fetching <tt>true</tt> if the memory reference is an instruction
+	 * fetch.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing,
+			boolean fetching) throws MipsException {
+		TranslationEntry last = lastTranslation[fetching ? 0 : 1];
+		if (last != null && last.vpn == pageFromAddress(vaddr)
+				&& (vaddr & (size - 1)) == 0 && !(writing && last.readOnly)
+				&& !Lib.test(dbgProcessor)) {
+			last.used = true;
+			if (writing)
+				last.dirty = true;
+
+			return (last.ppn * pageSize) + offsetFromAddress(vaddr);
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -319,9 +627,10 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries in vpn's set for a match
 		else {
-			for (int i = 0; i < tlbSize; i++) {
+			int first = tlbSet(vpn) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
 				if (translations[i].valid && translations[i].vpn == vpn) {
 					entry = translations[i];
 					break;
@@ -354,6 +663,9 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		if (usingTLB)
+			lastTranslation[fetching ? 0 : 1] = entry;
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
@@ -375,8 +687,7 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = loadPhys(translate(vaddr, size, false, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -392,9 +703,11 @@ public final class Processor {
 	 * @param vaddr the virtual address to write to.
 	 * @param size the number of bytes to write (1, 2, or 4).
 	 * @param value the value to store.
+	 * @return <tt>true</tt> if the write discarded compiled code.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private void writeMem(int vaddr, int size, int value) throws MipsException {
+	private boolean writeMem(int vaddr, int size, int value)
+			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
@@ -402,7 +715,61 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true, false);
+
+		storePhys(paddr, size, value);
+		return invalidateCode(paddr);
+	}
+
+	/**
+	 * Read a word from physical memory. The word must be aligned.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @return the word read.
+	 */
+	private int loadWord(int paddr) {
+		return (int) memoryInt.get(mainMemory, paddr);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory, sign extending
+	 * the result like <tt>Lib.bytesToInt()</tt>. The access must be aligned.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read.
+	 * @return the value read.
+	 */
+	private int loadPhys(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return mainMemory[paddr];
+		case 2:
+			return (short) memoryShort.get(mainMemory, paddr);
+		default:
+			return (int) memoryInt.get(mainMemory, paddr);
+		}
+	}
+
+	/**
+	 * Write <i>size</i> (1, 2, or 4) bytes of physical memory. The access must
+	 * be aligned.
+	 * 
+	 * @param paddr the physical address to write to.
+	 * @param size the number of bytes to write.
+	 * @param value the value to store.
+	 */
+	private void storePhys(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			mainMemory[paddr] = (byte) value;
+			break;
+		case 2:
+			memoryShort.set(mainMemory, paddr, (short) value);
+			break;
+		default:
+			memoryInt.set(mainMemory, paddr, value);
+			break;
+		}
 	}
 
 	/**
@@ -553,9 +920,36 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/** The execution engine selected by <tt>Processor.engine</tt>. */
+	private int engine;
+
+	/** Execute and tick one instruction at a time. */
+	private static final int engineInterpreter = 0;
+
+	/** Execute whole blocks, ticking once per block. */
+	private static final int engineBlock = 1;
+
+	/** Execute blocks, compiling hot regions into JVM classes. */
+	private static final int engineJit = 2;
+
+	/** The number of entries after which a region is compiled. */
+	private int jitThreshold;
+
+	/** The most instructions to run before advancing the simulated time. */
+	private int batchSize;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/**
+	 * The TLB entries used by the last instruction fetch and by the last data
+	 * access, or <tt>null</tt>.
+	 */
+	private TranslationEntry[] lastTranslation = new TranslationEntry[2];
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -574,6 +968,35 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Little-endian views of <tt>mainMemory</tt>, so that halfwords and words
+	 * are read and written in one access rather than a byte at a time.
+	 */
+	private static final VarHandle memoryInt = MethodHandles
+			.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle memoryShort = MethodHandles
+			.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Decoded instruction cache, indexed by physical page and then by word
+	 * within the page. Pages are allocated the first time code is fetched from
+	 * them.
+	 */
+	private Decoded[][] decodedPages;
+
+	/**
+	 * Compiled regions, indexed like <tt>decodedPages</tt> by their first
+	 * instruction. Only allocated by the <tt>jit</tt> engine.
+	 */
+	private JitRegion[][] compiledPages = null;
+
+	/** How often each instruction has started a block, for the JIT. */
+	private int[][] entryCounts = null;
+
+	/** The callbacks handed to compiled regions. */
+	private JitSupport jitSupport = null;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -583,6 +1006,8 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgJit = 'j';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
@@ -637,6 +1062,21 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute the instruction at the current PC, which the caller has
+		 * already translated to the physical address <i>paddr</i>.
+		 * 
+		 * @param paddr the physical address of the current PC.
+		 */
+		public void run(int paddr) throws MipsException {
+			this.paddr = paddr;
+			value = loadWord(paddr);
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -647,63 +1087,44 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translate(registers[regPC], 4, false, true);
+			value = loadWord(paddr);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			Decoded info = getDecoded(paddr, value);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
 
+			size = info.size;
+			dstReg = info.dstReg;
+
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -714,11 +1135,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1074,7 +1490,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1091,7 +1507,159 @@ public final class Processor {
 		boolean branch;
 	}
 
-	private static class Mips {
+	/**
+	 * A run of instructions compiled by <tt>MipsCompiler</tt>.
+	 */
+	interface CompiledRegion {
+		/**
+		 * Execute the region. On return, the PC registers point just past the
+		 * last instruction that completed.
+		 * 
+		 * @param registers the processor registers.
+		 * @param cpu the callbacks for memory access.
+		 * @param pc the virtual address of the first instruction.
+		 * @exception MipsException if a load or store trapped. The PC points
+		 * at the trapping instruction.
+		 */
+		void run(int[] registers, JitSupport cpu, int pc) throws MipsException;
+	}
+
+	/**
+	 * The processor operations compiled regions call back into. Each memory
+	 * access first points the PC at the instruction making it, so a trap is
+	 * raised from the right place.
+	 */
+	final class JitSupport {
+		void load(int pc, int vaddr, int size, boolean unsigned, int dstReg)
+				throws MipsException {
+			registers[regPC] = pc;
+			registers[regNextPC] = pc + 4;
+
+			int value = readMem(vaddr, size);
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+		}
+
+		boolean store(int pc, int vaddr, int size, int value)
+				throws MipsException {
+			registers[regPC] = pc;
+			registers[regNextPC] = pc + 4;
+
+			boolean discarded = writeMem(vaddr, size, value);
+			finishLoad();
+			return discarded;
+		}
+
+		void finishLoad() {
+			Processor.this.finishLoad();
+		}
+	}
+
+	/**
+	 * A compiled region, along with the instruction words it was compiled
+	 * from.
+	 */
+	private class JitRegion {
+		JitRegion(CompiledRegion code, int[] words) {
+			this.code = code;
+			this.words = words;
+		}
+
+		/**
+		 * Test whether physical memory at <i>paddr</i> still holds the words
+		 * this region was compiled from.
+		 */
+		boolean matches(int paddr) {
+			for (int i = 0; i < words.length; i++) {
+				if (loadWord(paddr + i * 4) != words[i])
+					return false;
+			}
+			return true;
+		}
+
+		final CompiledRegion code;
+
+		final int[] words;
+	}
+
+	/** Marks an entry point whose first instruction cannot be compiled. */
+	private final JitRegion notCompilable = new JitRegion(null, new int[0]);
+
+	/**
+	 * The part of a decoded instruction that depends only on the instruction
+	 * word itself, and not on the contents of any register. Instances are
+	 * immutable, so the same one can be handed out every time the word is
+	 * executed.
+	 */
+	static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = Lib.extract(value, 0, 16);
+			else
+				imm = Lib.extend(value, 0, 16);
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
+	static class Mips {
 		Mips() {
 		}
 
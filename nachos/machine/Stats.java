@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -32,6 +35,76 @@ public final class Stats {
 			        + ", swap skips " + numSwapSkips);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+
+		for (Map.Entry<String, LatencyHistogram[]> entry : threadLatencies
+				.entrySet()) {
+			LatencyHistogram[] histograms = entry.getValue();
+			System.out.println("Thread ticks under " + entry.getKey() + ":");
+			System.out.println("  running: " + histograms[ThreadRunning]);
+			System.out.println("  ready:   " + histograms[ThreadReady]);
+			System.out.println("  blocked: " + histograms[ThreadBlocked]);
+		}
+	}
+
+	/**
+	 * Return a copy of the counters in this object. The thread histograms are
+	 * not copied.
+	 * 
+	 * @return a new <tt>Stats</tt> with the same counters.
+	 */
+	Stats copyCounters() {
+		Stats copy = new Stats();
+		copy.totalTicks = totalTicks;
+		copy.kernelTicks = kernelTicks;
+		copy.userTicks = userTicks;
+		copy.numDiskReads = numDiskReads;
+		copy.numDiskWrites = numDiskWrites;
+		copy.numConsoleReads = numConsoleReads;
+		copy.numConsoleWrites = numConsoleWrites;
+		copy.numPageFaults = numPageFaults;
+		copy.numTLBMisses = numTLBMisses;
+		copy.numCOFFReads = numCOFFReads;
+		copy.numSwapReads = numSwapReads;
+		copy.numSwapWrites = numSwapWrites;
+		copy.numSwapSkips = numSwapSkips;
+		copy.numPacketsSent = numPacketsSent;
+		copy.numPacketsReceived = numPacketsReceived;
+		return copy;
+	}
+
+	/**
+	 * Record how long a kernel thread spent in one state, running, waiting on
+	 * the ready queue or blocked, before it changed to another.
+	 * 
+	 * @param scheduler the name of the scheduler the thread ran under.
+	 * @param state <tt>ThreadRunning</tt>, <tt>ThreadReady</tt> or
+	 * <tt>ThreadBlocked</tt>.
+	 * @param ticks the time spent in that state.
+	 */
+	public void recordThreadTicks(String scheduler, int state, long ticks) {
+		LatencyHistogram[] histograms = threadLatencies.get(scheduler);
+		if (histograms == null) {
+			histograms = new LatencyHistogram[3];
+			for (int i = 0; i < histograms.length; i++)
+				histograms[i] = new LatencyHistogram();
+			threadLatencies.put(scheduler, histograms);
+		}
+
+		histograms[state].record(ticks);
+	}
+
+	/**
+	 * Return the histogram of the time kernel threads spent in one state under
+	 * a scheduler, or <tt>null</tt> if nothing was recorded for it.
+	 * 
+	 * @param scheduler the name of the scheduler.
+	 * @param state <tt>ThreadRunning</tt>, <tt>ThreadReady</tt> or
+	 * <tt>ThreadBlocked</tt>.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getThreadTicks(String scheduler, int state) {
+		LatencyHistogram[] histograms = threadLatencies.get(scheduler);
+		return (histograms == null ? null : histograms[state]);
 	}
 
 	/**
@@ -85,6 +158,25 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The time kernel threads spent in each state, keyed by scheduler name.
+	 */
+	private LinkedHashMap<String, LatencyHistogram[]> threadLatencies = new LinkedHashMap<String, LatencyHistogram[]>();
+
+	/** A thread state for <tt>recordThreadTicks()</tt>: running. */
+	public static final int ThreadRunning = 0;
+
+	/**
+	 * A thread state for <tt>recordThreadTicks()</tt>: on the ready queue.
+	 */
+	public static final int ThreadReady = 1;
+
+	/**
+	 * A thread state for <tt>recordThreadTicks()</tt>: blocked, waiting for
+	 * some other thread or an interrupt to make it ready.
+	 */
+	public static final int ThreadBlocked = 2;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
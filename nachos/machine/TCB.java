@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +23,12 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * By default each TCB runs on a platform thread. Setting
+ * <tt>TCB.threads = virtual</tt> runs TCBs on JVM virtual threads instead,
+ * which allows far more TCBs to exist at once (see
+ * <tt>TCB.maxThreads</tt>). This requires a JVM with virtual threads.
  */
 @SuppressWarnings("removal")
 public final class TCB {
@@ -40,6 +48,28 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String threads = Config.getString("TCB.threads", "platform");
+		if (threads.equals("virtual")) {
+			try {
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+						.invoke(null);
+				unstartedVirtualThread = Class.forName(
+						"java.lang.Thread$Builder").getMethod("unstarted",
+						Runnable.class);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("TCB.threads = virtual requires a JVM with virtual threads");
+			}
+		}
+		else {
+			Lib.assertTrue(threads.equals("platform"), "unknown TCB.threads: "
+					+ threads);
+		}
+
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				virtualThreadBuilder != null ? maxVirtualThreads : maxThreads);
+		Lib.assertTrue(threadLimit > 0);
 	}
 
 	/**
@@ -69,7 +99,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -103,7 +133,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -114,7 +144,7 @@ public final class TCB {
 			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
 			 * safe to context switch to the new TCB.
 			 */
-			currentTCB.running = false;
+			runningTCB = null;
 
 			this.javaThread.start();
 			currentTCB.waitForInterrupt();
@@ -162,13 +192,13 @@ public final class TCB {
 		 * There are some synchronization concerns here. As soon as we wake up
 		 * the next thread, we cannot assume anything about static variables, or
 		 * about any TCB's state. Therefore, before waking up the next thread,
-		 * we must latch the value of currentTCB, and set its running flag to
-		 * false (so that, in case we get interrupted before we call yield(),
-		 * the interrupt will set the running flag and yield() won't block).
+		 * we must latch the value of currentTCB. Waking up the next thread
+		 * makes it the running TCB, which also stops the previous one (and in
+		 * case we get switched back to before we call yield(), runningTCB will
+		 * point at us again and yield() won't block).
 		 */
 
 		TCB previous = currentTCB;
-		previous.running = false;
 
 		this.interrupt();
 		previous.yield();
@@ -192,7 +222,6 @@ public final class TCB {
 		toBeDestroyed = null;
 
 		this.done = true;
-		currentTCB.running = false;
 
 		this.interrupt();
 		currentTCB.waitForInterrupt();
@@ -217,6 +246,26 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	/**
+	 * Create the unstarted Java thread for a new TCB: a virtual thread if
+	 * <tt>TCB.threads</tt> selects them, otherwise a platform thread.
+	 * 
+	 * @param target the code the thread runs.
+	 * @return the new Java thread.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadBuilder == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedVirtualThread.invoke(
+					virtualThreadBuilder, target);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -224,10 +273,10 @@ public final class TCB {
 		if (!isFirstTCB) {
 			/*
 			 * start() is waiting for us to wake it up, signalling that it's OK
-			 * to context switch to us. We leave the running flag false so that
-			 * we'll still run if a context switch happens before we go to
-			 * sleep. All we have to do is wake up the current TCB and then wait
-			 * to get woken up by contextSwitch() or destroy().
+			 * to context switch to us. Once we wake it up, we'll still run if a
+			 * context switch to us happens before we go to sleep. All we have
+			 * to do is wake up the current TCB and then wait to get woken up by
+			 * contextSwitch() or destroy().
 			 */
 
 			currentTCB.interrupt();
@@ -240,7 +289,7 @@ public final class TCB {
 			 */
 
 			currentTCB = this;
-			running = true;
+			runningTCB = this;
 		}
 
 		try {
@@ -292,32 +341,32 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Parks the Java thread bound to this TCB until <tt>runningTCB</tt> is
+	 * this TCB. <tt>waitForInterrupt()</tt> is used whenever a TCB needs to
+	 * wait for its turn to run. This includes the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * <tt>LockSupport.park()</tt> may return spuriously, and an unpark that
+	 * arrives before we park is remembered, so checking <tt>runningTCB</tt> in
+	 * a loop is all the synchronization needed. Unlike a monitor wait, parking
+	 * does not pin the carrier of a virtual thread.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (runningTCB != this)
+			LockSupport.park(this);
 	}
 
 	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * Wake up this TCB by making it <tt>runningTCB</tt> and unparking the Java
+	 * thread bound to it. Used in the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		runningTCB = this;
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -343,10 +392,32 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, by default.
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default limit on started, non-destroyed TCB's when they run on
+	 * virtual threads.
+	 */
+	public static final int maxVirtualThreads = 100000;
+
+	/**
+	 * The limit on started, non-destroyed TCB's in effect, set by
+	 * <tt>TCB.maxThreads</tt>.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * The <tt>Thread.Builder</tt> for virtual threads and its
+	 * <tt>unstarted()</tt> method, or <tt>null</tt> if TCBs run on platform
+	 * threads. They are looked up reflectively so that Nachos still builds
+	 * and runs on JVMs without virtual threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method unstartedVirtualThread = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -396,15 +467,13 @@ public final class TCB {
 	private Thread javaThread = null;
 
 	/**
-	 * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-	 * be running. This is an entirely different condition from membership in
-	 * <tt>runningThreads</tt>, which contains all TCB objects that have started
-	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
-	 * associated Java thread ought to run ASAP. When starting or destroying a
-	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * The TCB whose Java thread ought to be running, or <tt>null</tt> while a
+	 * new TCB's Java thread is starting up. This is an entirely different
+	 * condition from membership in <tt>runningThreads</tt>, which contains all
+	 * TCB objects that have started and have not terminated. When starting or
+	 * destroying a TCB, this is temporarily a TCB other than the current TCB.
 	 */
-	private boolean running = false;
+	private static volatile TCB runningTCB = null;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
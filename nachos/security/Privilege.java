@@ -157,6 +157,24 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time as if the specified number of MIPS user
+		 * instructions had each called <tt>tick(false)</tt>, but only check
+		 * for due interrupts once, at the end. The caller must make sure no
+		 * interrupt falls due before the last of these instructions.
+		 * 
+		 * @param numInstructions the number of user instructions executed.
+		 */
+		public void tickUser(int numInstructions);
+
+		/**
+		 * Return the number of ticks until the next pending interrupt is due.
+		 * 
+		 * @return the number of ticks until the earliest pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long timeUntilNextInterrupt();
 	}
 
 	/**
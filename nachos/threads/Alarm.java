@@ -8,8 +8,13 @@ import nachos.machine.*;
  */
 public class Alarm {
 
+	// sleeping threads, as a binary min-heap ordered by comp; each pair
+	// records its slot in heapIndex
 	private ArrayList<MyPair> waitQueue;
+	private HashMap<KThread, MyPair> sleepers;
 	private ThreadComparator comp;
+	private long numSleeps;
+	private boolean preemptive;
 
 
 	/**
@@ -21,6 +26,10 @@ public class Alarm {
 	 */
 	public Alarm() {
 		waitQueue = new ArrayList<MyPair>();
+		sleepers = new HashMap<KThread, MyPair>();
+		comp = new ThreadComparator();
+		numSleeps = 0;
+		preemptive = Config.getBoolean("ThreadedKernel.preemptive", true);
 
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
@@ -32,21 +41,20 @@ public class Alarm {
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * thread to yield, forcing a context switch, if another thread is ready and
+	 * the current thread has used up its time slice (see
+	 * <tt>Scheduler.getQuantum()</tt>). With
+	 * <tt>ThreadedKernel.preemptive = false</tt>, never preempts.
 	 */
 	public void timerInterrupt() {
-		ArrayList<MyPair> removal = new ArrayList<>();
-		for (MyPair curr:waitQueue) {
-			if (curr.getWakeTime() <= Machine.timer().getTime()){
-				curr.getThread().ready();
-				removal.add(curr);
-			}
-		}
-		for(MyPair curr:removal) {
-			waitQueue.remove(curr);
+		long now = Machine.timer().getTime();
+		while (!waitQueue.isEmpty() && waitQueue.get(0).getWakeTime() <= now) {
+			MyPair curr = waitQueue.get(0);
+			remove(curr);
+			curr.expire();
 		}
-		KThread.yield();
+		if (preemptive && KThread.timeSliceExpired())
+			KThread.yield();
 	}
 
 	/**
@@ -69,9 +77,7 @@ public class Alarm {
 		boolean status = Machine.interrupt().disable();
 		KThread toAdd = KThread.currentThread(); 
 		long wakeTime = Machine.timer().getTime() + x;
-		MyPair pToAdd = new MyPair(wakeTime, toAdd);
-		waitQueue.add(pToAdd);
-		KThread.sleep();
+		waitUntil(new MyPair(wakeTime, toAdd));
 		Machine.interrupt().restore(status);
 		// while (wakeTime > Machine.timer().getTime())
 		// KThread.yield();
@@ -87,25 +93,102 @@ public class Alarm {
 	 * @param thread the thread whose timer should be cancelled.
 	 */
     public boolean cancel(KThread thread) {
-		for (MyPair t : waitQueue) {
-			if (t.getThread() == thread) {
-				if(!t.getThread().isReady()) {
-					t.getThread().ready();
-				}
-				waitQueue.remove(t);
-				return true;
-			}
+		MyPair t = sleepers.get(thread);
+		if (t == null) {
+			return false;
+		}
+		remove(t);
+		if(!t.getThread().isReady()) {
+			t.expire();
+		}
+		return true;
+	}
+
+	/**
+	 * Put the current thread to sleep until the wake time of <i>pair</i>,
+	 * when the alarm calls <tt>pair.expire()</tt>, or until the timer is
+	 * cancelled. Interrupts must be disabled.
+	 */
+	void waitUntil(MyPair pair) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		pair.sequence = numSleeps++;
+		add(pair);
+		KThread.sleep();
+	}
+
+	/**
+	 * Take <i>pair</i> off the alarm without expiring it, so its thread is
+	 * not woken. Interrupts must be disabled.
+	 * 
+	 * @return <tt>false</tt> if <i>pair</i> was not waiting.
+	 */
+	boolean cancel(MyPair pair) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (pair.heapIndex < 0) {
+			return false;
 		}
-		return false;
+		remove(pair);
+		return true;
 	}
 
 	public boolean isWaiting(KThread thread) {
-		for(MyPair t: waitQueue) {
-			if(t.getThread() == thread) {
-				return true;
+		return sleepers.containsKey(thread);
+	}
+
+	private void add(MyPair pair) {
+		sleepers.put(pair.getThread(), pair);
+		pair.heapIndex = waitQueue.size();
+		waitQueue.add(pair);
+		siftUp(pair.heapIndex);
+	}
+
+	private void remove(MyPair pair) {
+		sleepers.remove(pair.getThread());
+		int i = pair.heapIndex;
+		MyPair last = waitQueue.remove(waitQueue.size() - 1);
+		if (last != pair) {
+			set(i, last);
+			siftUp(i);
+			siftDown(last.heapIndex);
+		}
+		pair.heapIndex = -1;
+	}
+
+	private void siftUp(int i) {
+		MyPair pair = waitQueue.get(i);
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (comp.compare(pair, waitQueue.get(parent)) >= 0) {
+				break;
+			}
+			set(i, waitQueue.get(parent));
+			i = parent;
+		}
+		set(i, pair);
+	}
+
+	private void siftDown(int i) {
+		MyPair pair = waitQueue.get(i);
+		int size = waitQueue.size();
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && comp.compare(waitQueue.get(child + 1), waitQueue.get(child)) < 0) {
+				child++;
+			}
+			if (comp.compare(waitQueue.get(child), pair) >= 0) {
+				break;
 			}
+			set(i, waitQueue.get(child));
+			i = child;
 		}
-		return false;
+		set(i, pair);
+	}
+
+	private void set(int i, MyPair pair) {
+		waitQueue.set(i, pair);
+		pair.heapIndex = i;
 	}
 
 	 // Add Alarm testing code to the Alarm class
@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import java.util.function.IntSupplier;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that benchmarks the synchronization primitives. It runs each
+ * benchmark with 2, 4, ... up to <tt>BenchmarkKernel.threads</tt> threads
+ * and prints, for each, the host wall-clock time and the simulated ticks per
+ * operation, so that a regression in either shows up. Select it with
+ * <tt>Kernel.kernel = nachos.threads.BenchmarkKernel</tt>, as
+ * <tt>proj1/benchmark.conf</tt> does.
+ * 
+ * <p>
+ * The benchmarks are:
+ * <ul>
+ * <li><tt>lock</tt>: every thread repeatedly acquires a shared lock, yields
+ * while holding it, and releases it, so the lock is always contended.
+ * <li><tt>semaphore</tt>: a token is passed around a ring of threads, each
+ * doing <tt>P()</tt> on its own semaphore and <tt>V()</tt> on the next one.
+ * <li><tt>condition</tt>: the same ring, with a turn variable protected by a
+ * lock and one <tt>Condition2</tt> per thread.
+ * <li><tt>fork/join</tt>: the main thread forks threads that do nothing and
+ * joins them.
+ * <li><tt>future</tt> and <tt>pool</tt>: the main thread creates futures
+ * for trivial functions, a thread per future or on a <tt>KThreadPool</tt>
+ * with as many workers as threads, and waits with <tt>Future.getAll()</tt>.
+ * <li><tt>alarm</tt>: every thread repeatedly sleeps for
+ * <tt>Stats.TimerTicks</tt>; the lateness of the wakeups is also reported.
+ * </ul>
+ * Each benchmark performs <tt>BenchmarkKernel.operations</tt> operations in
+ * all, shared among the threads, except <tt>fork/join</tt>, <tt>future</tt>
+ * and <tt>pool</tt>, which perform a tenth, and <tt>alarm</tt>, which
+ * performs a hundredth of that. Every
+ * benchmark is first run once with two threads and without reporting, to
+ * warm up the host JVM.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchmarkKernel() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		maxThreads = Config.getInteger("BenchmarkKernel.threads", 8);
+		operations = Config.getInteger("BenchmarkKernel.operations", 100000);
+
+		Lib.assertTrue(maxThreads >= 2 && operations > 0);
+	}
+
+	/**
+	 * The benchmarks replace the self tests.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every benchmark with each number of threads.
+	 */
+	public void run() {
+		System.out.println("Benchmarking under "
+				+ scheduler.getClass().getName());
+
+		warmingUp = true;
+		runAll(2);
+		warmingUp = false;
+
+		for (int threads = 2; threads <= maxThreads; threads *= 2)
+			runAll(threads);
+	}
+
+	private void runAll(int threads) {
+		lockBenchmark(threads);
+		semaphoreBenchmark(threads);
+		conditionBenchmark(threads);
+		forkJoinBenchmark(threads);
+		futureBenchmark(threads, false);
+		futureBenchmark(threads, true);
+		alarmBenchmark(threads);
+	}
+
+	private void lockBenchmark(int threads) {
+		final int rounds = operations / threads;
+		final Lock lock = new Lock();
+
+		measure("lock", threads, new Worker() {
+			public void run(int id) {
+				for (int i = 0; i < rounds; i++) {
+					lock.acquire();
+					KThread.yield();
+					lock.release();
+				}
+			}
+		});
+	}
+
+	private void semaphoreBenchmark(final int threads) {
+		final int rounds = operations / threads;
+		final Semaphore[] semaphores = new Semaphore[threads];
+		for (int i = 0; i < threads; i++)
+			semaphores[i] = new Semaphore(i == 0 ? 1 : 0);
+
+		measure("semaphore", threads, new Worker() {
+			public void run(int id) {
+				for (int i = 0; i < rounds; i++) {
+					semaphores[id].P();
+					semaphores[(id + 1) % threads].V();
+				}
+			}
+		});
+	}
+
+	private void conditionBenchmark(final int threads) {
+		final int rounds = operations / threads;
+		final Lock lock = new Lock();
+		final Condition2[] conditions = new Condition2[threads];
+		for (int i = 0; i < threads; i++)
+			conditions[i] = new Condition2(lock);
+		final int[] turn = new int[1];
+
+		measure("condition", threads, new Worker() {
+			public void run(int id) {
+				lock.acquire();
+				for (int i = 0; i < rounds; i++) {
+					while (turn[0] != id)
+						conditions[id].sleep();
+					turn[0] = (id + 1) % threads;
+					conditions[turn[0]].wake();
+				}
+				lock.release();
+			}
+		});
+	}
+
+	private void forkJoinBenchmark(int threads) {
+		int rounds = Math.max(1, operations / 10 / threads);
+		Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		};
+
+		long wallStart = System.nanoTime();
+		long tickStart = Machine.timer().getTime();
+
+		KThread[] children = new KThread[threads];
+		for (int i = 0; i < rounds; i++) {
+			for (int j = 0; j < threads; j++) {
+				children[j] = new KThread(nothing).setName("fork/join " + j);
+				children[j].fork();
+			}
+			for (int j = 0; j < threads; j++)
+				children[j].join();
+		}
+
+		report("fork/join", threads, (long) rounds * threads, wallStart,
+				tickStart, null);
+	}
+
+	private void futureBenchmark(int threads, boolean pooled) {
+		int numFutures = Math.max(1, operations / 10);
+		IntSupplier one = new IntSupplier() {
+			public int getAsInt() {
+				return 1;
+			}
+		};
+
+		long wallStart = System.nanoTime();
+		long tickStart = Machine.timer().getTime();
+
+		KThreadPool pool = (pooled ? new KThreadPool(threads) : null);
+		Future[] futures = new Future[numFutures];
+		for (int i = 0; i < numFutures; i++)
+			futures[i] = (pooled ? pool.submit(one) : new Future(one));
+		Future.getAll(futures);
+		if (pooled)
+			pool.shutdown();
+
+		report(pooled ? "pool" : "future", threads, numFutures, wallStart,
+				tickStart, null);
+	}
+
+	private void alarmBenchmark(int threads) {
+		final int rounds = Math.max(1, operations / 100 / threads);
+		final LatencyHistogram lateness = new LatencyHistogram();
+
+		measureWith("alarm", threads, new Worker() {
+			public void run(int id) {
+				for (int i = 0; i < rounds; i++) {
+					long start = Machine.timer().getTime();
+					ThreadedKernel.alarm.waitUntil(Stats.TimerTicks);
+					lateness.record(Machine.timer().getTime() - start
+							- Stats.TimerTicks);
+				}
+			}
+		}, lateness);
+	}
+
+	/**
+	 * The code run by each thread of a benchmark.
+	 */
+	private interface Worker {
+		/**
+		 * Do this thread's share of the operations.
+		 * 
+		 * @param id the number of this thread, from 0.
+		 */
+		void run(int id);
+	}
+
+	private void measure(String name, int threads, Worker worker) {
+		measureWith(name, threads, worker, null);
+	}
+
+	/**
+	 * Fork <i>threads</i> threads running <i>worker</i>, wait for all of them
+	 * and report the time taken.
+	 */
+	private void measureWith(String name, int threads, final Worker worker,
+			LatencyHistogram lateness) {
+		KThread[] workers = new KThread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			workers[i] = new KThread(new Runnable() {
+				public void run() {
+					worker.run(id);
+				}
+			}).setName(name + " " + i);
+		}
+
+		long wallStart = System.nanoTime();
+		long tickStart = Machine.timer().getTime();
+
+		for (int i = 0; i < threads; i++)
+			workers[i].fork();
+		for (int i = 0; i < threads; i++)
+			workers[i].join();
+
+		long ops = (lateness != null ? lateness.getCount()
+				: (long) (operations / threads) * threads);
+		report(name, threads, ops, wallStart, tickStart, lateness);
+	}
+
+	private void report(String name, int threads, long ops, long wallStart,
+			long tickStart, LatencyHistogram lateness) {
+		long wall = System.nanoTime() - wallStart;
+		long ticks = Machine.timer().getTime() - tickStart;
+
+		if (warmingUp)
+			return;
+
+		String line = String.format(
+				"%-10s %3d threads %8d ops %10.0f ops/s %8d ns/op %8.1f ticks/op",
+				name, threads, ops, ops * 1e9 / Math.max(wall, 1), wall / ops,
+				(double) ticks / ops);
+		if (lateness != null)
+			line += ", late p50 " + lateness.getPercentile(50) + " p99 "
+					+ lateness.getPercentile(99);
+
+		System.out.println(line);
+	}
+
+	private int maxThreads;
+
+	private boolean warmingUp;
+
+	private int operations;
+}
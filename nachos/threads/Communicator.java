@@ -8,12 +8,39 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ * 
+ * <p>
+ * Words pass through a ring buffer, in the order they were spoken. A
+ * communicator allocated with a capacity is a bounded channel instead:
+ * <tt>speak()</tt> returns as soon as its word is in the buffer, and only
+ * waits while the buffer is full. <tt>speakAll()</tt> and
+ * <tt>listen(int[])</tt> move as many words as fit per acquisition of the
+ * lock, and wake at most one waiting thread per batch.
  */
 public class Communicator {
 	/**
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new communicator that buffers up to <i>capacity</i> words.
+	 * With a capacity of 0 it is synchronous, as described above.
+	 * 
+	 * @param capacity the number of words that can be spoken before one is
+	 * listened to.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		buffer = new int[capacity > 0 ? capacity : 16];
+
+		lock = new Lock();
+		wordsAvailable = new Condition2(lock);
+		spaceOrTaken = new Condition2(lock);
 	}
 
 	/**
@@ -21,12 +48,47 @@ public class Communicator {
 	 * <i>word</i> to the listener.
 	 * 
 	 * <p>
-	 * Does not return until this thread is paired up with a listening thread.
-	 * Exactly one listener should receive <i>word</i>.
+	 * Does not return until this thread is paired up with a listening thread,
+	 * or, with a capacity, until <i>word</i> is in the buffer. Exactly one
+	 * listener should receive <i>word</i>.
 	 * 
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		lock.acquire();
+
+		makeRoom(1);
+		buffer[(head + count) % buffer.length] = word;
+		added(1);
+
+		lock.release();
+	}
+
+	/**
+	 * Transfer all of <i>words</i>, in order, as if by calling
+	 * <tt>speak()</tt> on each. The words of one call are not interleaved
+	 * with those of other speakers as long as they fit in the buffer.
+	 * 
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		lock.acquire();
+
+		int done = 0;
+		while (done < words.length) {
+			makeRoom(words.length - done);
+
+			int n = Math.min(buffer.length - count, words.length - done);
+			int tail = (head + count) % buffer.length;
+			int first = Math.min(n, buffer.length - tail);
+			System.arraycopy(words, done, buffer, tail, first);
+			System.arraycopy(words, done + first, buffer, 0, n - first);
+			done += n;
+
+			added(n);
+		}
+
+		lock.release();
 	}
 
 	/**
@@ -36,6 +98,229 @@ public class Communicator {
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		lock.acquire();
+
+		waitForWords();
+		int word = buffer[head];
+		removed(1);
+
+		lock.release();
+		return word;
+	}
+
+	/**
+	 * Wait for at least one word to be spoken, and then take as many words as
+	 * are available, up to the length of <i>out</i>.
+	 * 
+	 * @param out the array to put the words in, starting at index 0.
+	 * @return the number of words transferred, which is only 0 if <i>out</i>
+	 * is empty.
+	 */
+	public int listen(int[] out) {
+		if (out.length == 0)
+			return 0;
+
+		lock.acquire();
+
+		waitForWords();
+		int n = Math.min(count, out.length);
+		int first = Math.min(n, buffer.length - head);
+		System.arraycopy(buffer, head, out, 0, first);
+		System.arraycopy(buffer, 0, out, first, n - first);
+		removed(n);
+
+		lock.release();
+		return n;
+	}
+
+	/**
+	 * Make room in the buffer for up to <i>wanted</i> words: a bounded
+	 * communicator waits until there is space for at least one, a synchronous
+	 * one grows its buffer to fit them all.
+	 */
+	private void makeRoom(int wanted) {
+		if (capacity > 0) {
+			while (count == buffer.length) {
+				waitingSpeakers++;
+				spaceOrTaken.sleep();
+				waitingSpeakers--;
+			}
+		}
+		else if (buffer.length - count < wanted) {
+			int length = buffer.length;
+			while (length - count < wanted)
+				length *= 2;
+
+			int[] grown = new int[length];
+			int first = Math.min(count, buffer.length - head);
+			System.arraycopy(buffer, head, grown, 0, first);
+			System.arraycopy(buffer, 0, grown, first, count - first);
+			buffer = grown;
+			head = 0;
+		}
+	}
+
+	/**
+	 * Account for <i>n</i> words just added, and wake a listener. A
+	 * synchronous speaker then waits until all of its words are taken.
+	 */
+	private void added(int n) {
+		count += n;
+		numSpoken += n;
+
+		if (waitingListeners > 0)
+			wordsAvailable.wake();
+
+		if (capacity > 0) {
+			// pass the wakeup on to the next speaker
+			if (count < buffer.length && waitingSpeakers > 0)
+				spaceOrTaken.wake();
+		}
+		else {
+			long spoken = numSpoken;
+			while (numTaken < spoken) {
+				waitingSpeakers++;
+				spaceOrTaken.sleep();
+				waitingSpeakers--;
+			}
+		}
+	}
+
+	private void waitForWords() {
+		while (count == 0) {
+			waitingListeners++;
+			wordsAvailable.sleep();
+			waitingListeners--;
+		}
 	}
+
+	/**
+	 * Account for <i>n</i> words just taken from the head of the buffer, and
+	 * wake the threads that may be able to proceed.
+	 */
+	private void removed(int n) {
+		head = (head + n) % buffer.length;
+		count -= n;
+		numTaken += n;
+
+		// pass the wakeup on to the next listener
+		if (count > 0 && waitingListeners > 0)
+			wordsAvailable.wake();
+
+		if (waitingSpeakers > 0) {
+			if (capacity > 0)
+				spaceOrTaken.wake();
+			else
+				spaceOrTaken.wakeAll();
+		}
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		synchronousTest();
+		streamTest();
+	}
+
+	/**
+	 * Several speakers and listeners pair off through a synchronous
+	 * communicator; every word must be heard exactly once.
+	 */
+	private static void synchronousTest() {
+		final Communicator com = new Communicator();
+		final int n = 4, words = 50;
+		final int[] heard = new int[n * words];
+		KThread[] threads = new KThread[2 * n];
+
+		for (int i = 0; i < n; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < words; j++)
+						com.speak(id * words + j);
+				}
+			}).setName("speaker " + i);
+			threads[n + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < words; j++)
+						heard[com.listen()]++;
+				}
+			}).setName("listener " + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		for (int count : heard)
+			Lib.assertTrue(count == 1);
+
+		System.out.println("Communicator synchronous test passed");
+	}
+
+	/**
+	 * A speaker streams words in batches through a small bounded buffer to a
+	 * listener that takes them in batches; they must arrive in order.
+	 */
+	private static void streamTest() {
+		final Communicator com = new Communicator(64);
+		final int total = 10000;
+
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				int[] batch = new int[100];
+				for (int sent = 0; sent < total; sent += batch.length) {
+					for (int i = 0; i < batch.length; i++)
+						batch[i] = sent + i;
+					com.speakAll(batch);
+				}
+			}
+		}).setName("stream speaker");
+
+		speaker.fork();
+
+		int[] out = new int[37];
+		int received = 0;
+		while (received < total) {
+			int n = com.listen(out);
+			Lib.assertTrue(n > 0);
+			for (int i = 0; i < n; i++)
+				Lib.assertTrue(out[i] == received + i);
+			received += n;
+		}
+
+		speaker.join();
+
+		System.out.println("Communicator stream test passed");
+	}
+
+	/** The buffer size, or 0 if speakers wait for their words to be taken. */
+	private int capacity;
+
+	/**
+	 * The words spoken but not yet taken: <tt>count</tt> of them, starting
+	 * at <tt>head</tt> and wrapping around.
+	 */
+	private int[] buffer;
+
+	private int head = 0;
+
+	private int count = 0;
+
+	/** The number of words ever added and ever taken. */
+	private long numSpoken = 0, numTaken = 0;
+
+	private Lock lock;
+
+	private Condition2 wordsAvailable;
+
+	/**
+	 * Where speakers wait: for space, if bounded, or for their words to be
+	 * taken, if synchronous.
+	 */
+	private Condition2 spaceOrTaken;
+
+	private int waitingListeners = 0, waitingSpeakers = 0;
 }
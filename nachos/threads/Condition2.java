@@ -4,13 +4,15 @@ import nachos.machine.*;
 
 import java.util.LinkedList;
 
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * Each sleeping thread has a single <tt>Waiter</tt> node, linked into this
+ * condition's FIFO list and, for <tt>sleepFor()</tt>, also held by the alarm.
+ * A node can be taken off either structure directly, so a wake cancels the
+ * timer and a timeout unlinks the node without searching for it.
  * 
  * @see nachos.threads.Condition
  */
@@ -24,8 +26,6 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-
-		waitQueue = new LinkedList<KThread>();
 	}
 
 	/**
@@ -40,8 +40,7 @@ public class Condition2 {
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.release();
 
-		KThread curr = KThread.currentThread();
-		waitQueue.add(curr);
+		append(new Waiter(null, KThread.currentThread()));
 		KThread.sleep();
 
 		conditionLock.acquire();
@@ -57,18 +56,13 @@ public class Condition2 {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if(!waitQueue.isEmpty()) {
-			KThread woken = waitQueue.pop();
-			while(!waitQueue.isEmpty() && woken.isReady()) {
-				woken = waitQueue.pop();
-			}
-			if(!woken.isReady()) {
-				woken.ready();
-				if(ThreadedKernel.alarm.isWaiting(woken)) {
-					ThreadedKernel.alarm.cancel(woken);
-				}
-			}
+		Waiter woken = first;
+		if (woken != null) {
+			unlink(woken);
+			ThreadedKernel.alarm.cancel(woken);
+			woken.getThread().ready();
 		}
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -79,37 +73,98 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		while(!waitQueue.isEmpty()) {
+		while (first != null) {
 			this.wake();
 		}
 		Machine.interrupt().restore(intStatus);
 	}
 
-        /**
+	/**
 	 * Atomically release the associated lock and go to sleep on
 	 * this condition variable until either (1) another thread
 	 * wakes it using <tt>wake()</tt>, or (2) the specified
 	 * <i>timeout</i> elapses.  The current thread must hold the
 	 * associated lock.  The thread will automatically reacquire
 	 * the lock before <tt>sleep()</tt> returns.
+	 * 
+	 * @param timeout the maximum number of clock ticks to wait. If it is not
+	 * positive, returns <tt>true</tt> at once, without releasing the lock.
+	 * @return <tt>true</tt> if the timeout elapsed, <tt>false</tt> if another
+	 * thread woke this one first.
 	 */
-        public void sleepFor(long timeout) {
-			Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-			boolean intStatus = Machine.interrupt().disable();
-			conditionLock.release();
+	public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		if (timeout <= 0) {
+			return true;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		conditionLock.release();
+
+		Waiter waiter = new Waiter(Machine.timer().getTime() + timeout,
+				KThread.currentThread());
+		append(waiter);
+		ThreadedKernel.alarm.waitUntil(waiter);
 
-			KThread curr = KThread.currentThread();
-			waitQueue.add(curr);
+		conditionLock.acquire();
+		Machine.interrupt().restore(intStatus);
+		return waiter.timedOut;
+	}
+
+	private void append(Waiter waiter) {
+		waiter.prev = last;
+		if (last == null) {
+			first = waiter;
+		}
+		else {
+			last.next = waiter;
+		}
+		last = waiter;
+	}
+
+	private void unlink(Waiter waiter) {
+		if (waiter.prev == null) {
+			first = waiter.next;
+		}
+		else {
+			waiter.prev.next = waiter.next;
+		}
+		if (waiter.next == null) {
+			last = waiter.prev;
+		}
+		else {
+			waiter.next.prev = waiter.prev;
+		}
+		waiter.prev = waiter.next = null;
+	}
 
-			ThreadedKernel.alarm.waitUntil(timeout);
+	/**
+	 * A sleeping thread: a node of this condition's list and, if it has a
+	 * wake time, of the alarm's heap.
+	 */
+	private class Waiter extends MyPair {
+		Waiter(Long wakeTime, KThread thread) {
+			super(wakeTime, thread);
+		}
 
-			conditionLock.acquire();
-			Machine.interrupt().restore(intStatus);
+		/**
+		 * Called by the alarm when the timeout elapses.
+		 */
+		public void expire() {
+			unlink(this);
+			timedOut = true;
+			super.expire();
 		}
 
-        private Lock conditionLock;
+		Waiter prev, next;
 
-		private LinkedList<KThread> waitQueue;
+		boolean timedOut = false;
+	}
+
+	private Lock conditionLock;
+
+	/** The sleeping threads, in the order they went to sleep. */
+	private Waiter first = null, last = null;
 
 		// Place Condition2 testing code in the Condition2 class.
 
@@ -361,6 +416,43 @@ public class Condition2 {
 
 		System.out.println("test4 complete!");
 	}
+
+	// sleepFor() reports whether it timed out, and a waiter that timed out
+	// is no longer on the condition, so wake() goes to the next one.
+	private static void sleepForTest5() {
+		Lock lock = new Lock();
+		Condition2 cv = new Condition2(lock);
+		final boolean[] timedOut = new boolean[2];
+
+		KThread early = new KThread(new Runnable () {
+			public void run() {
+				lock.acquire();
+				timedOut[0] = cv.sleepFor(1000);
+				lock.release();
+			}
+		});
+		KThread late = new KThread(new Runnable () {
+			public void run() {
+				lock.acquire();
+				timedOut[1] = cv.sleepFor(100000);
+				lock.release();
+			}
+		});
+
+		early.fork();
+		late.fork();
+		ThreadedKernel.alarm.waitUntil(5000);
+
+		lock.acquire();
+		cv.wake();
+		Lib.assertTrue(cv.sleepFor(0));
+		lock.release();
+
+		early.join();
+		late.join();
+		Lib.assertTrue(timedOut[0] && !timedOut[1]);
+		System.out.println("test5 complete!");
+	}
 			
     public static void selfTest() {
         //new InterlockTest();
@@ -368,6 +460,7 @@ public class Condition2 {
 		//sleepForTest2();
 		//sleepForTest3();
 		sleepForTest4();
+		//sleepForTest5();
 		//cvTest5();
     }
 }
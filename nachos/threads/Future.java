@@ -2,11 +2,19 @@ package nachos.threads;
 
 import java.util.*;
 import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
 import nachos.machine.*;
 
 /**
  * A <i>Future</i> is a convenient mechanism for using asynchonous
  * operations.
+ * 
+ * <p>
+ * A future is done once its value is set. Threads blocked in <i>get</i>
+ * or <i>getAll</i> are then made ready, and the actions chained with
+ * <i>thenApply</i> run in the thread that set the value. To avoid
+ * forking a thread per future, submit the function to a
+ * <tt>KThreadPool</tt> instead of using the constructor.
  */
 public class Future {
     /**
@@ -15,7 +23,21 @@ public class Future {
      * particular, the constructor should not block as a consequence
      * of invoking <i>function</i>.
      */
-    public Future (IntSupplier function) {
+    public Future (final IntSupplier function) {
+        this();
+        new KThread(new Runnable () {
+                public void run() {
+                    complete(function.getAsInt());
+                }
+            }).setName("future").fork();
+    }
+
+    /**
+     * Instantiate a <i>Future</i> that is done when some other code
+     * calls <i>complete</i>.
+     */
+    Future () {
+        waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -28,6 +50,191 @@ public class Future {
      * threads), and it should always return the same value.
      */
     public int get () {
-	return -1;
+        boolean intStatus = Machine.interrupt().disable();
+        if (!done) {
+            waitQueue.waitForAccess(KThread.currentThread());
+            KThread.sleep();
+        }
+        Machine.interrupt().restore(intStatus);
+        return value;
+    }
+
+    /**
+     * Return whether the value of this <i>Future</i> is available,
+     * without blocking.
+     */
+    public boolean isDone () {
+        return done;
+    }
+
+    /**
+     * Return a <i>Future</i> whose value is <i>function</i> applied
+     * to the value of this one.  The function runs, without forking a
+     * thread, in the thread that completes this <i>Future</i>, or in
+     * the caller if this one is already done.
+     * 
+     * @param function the function to apply.
+     * @return the chained <i>Future</i>.
+     */
+    public Future thenApply (final IntUnaryOperator function) {
+        final Future next = new Future();
+        whenDone(new Runnable () {
+                public void run() {
+                    next.complete(function.applyAsInt(value));
+                }
+            });
+        return next;
     }
+
+    /**
+     * Return the values of all of <i>futures</i>, in order, blocking
+     * at most once, until the last of them is done.
+     * 
+     * @param futures the futures to wait for.
+     * @return their values.
+     */
+    public static int[] getAll (Future[] futures) {
+        final KThread waiter = KThread.currentThread();
+        final int[] remaining = new int[1];
+        Runnable countDown = new Runnable () {
+                public void run() {
+                    boolean intStatus = Machine.interrupt().disable();
+                    if (--remaining[0] == 0)
+                        waiter.ready();
+                    Machine.interrupt().restore(intStatus);
+                }
+            };
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (Future future : futures) {
+            if (!future.done) {
+                remaining[0]++;
+                future.addCallback(countDown);
+            }
+        }
+        if (remaining[0] > 0)
+            KThread.sleep();
+        Machine.interrupt().restore(intStatus);
+
+        int[] values = new int[futures.length];
+        for (int i = 0; i < futures.length; i++)
+            values[i] = futures[i].value;
+        return values;
+    }
+
+    /**
+     * Set the value of this <i>Future</i>, wake the threads waiting
+     * for it, and run the actions chained to it.  May only be called
+     * once.
+     * 
+     * @param value the value.
+     */
+    void complete (int value) {
+        boolean intStatus = Machine.interrupt().disable();
+        Lib.assertTrue(!done);
+
+        this.value = value;
+        done = true;
+
+        KThread thread;
+        while ((thread = waitQueue.nextThread()) != null)
+            thread.ready();
+
+        ArrayList<Runnable> toRun = callbacks;
+        callbacks = null;
+        Machine.interrupt().restore(intStatus);
+
+        if (toRun != null) {
+            for (Runnable callback : toRun)
+                callback.run();
+        }
+    }
+
+    /**
+     * Run <i>callback</i> once this <i>Future</i> is done: now, if it
+     * already is.
+     */
+    private void whenDone (Runnable callback) {
+        boolean intStatus = Machine.interrupt().disable();
+        if (done) {
+            Machine.interrupt().restore(intStatus);
+            callback.run();
+            return;
+        }
+        addCallback(callback);
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private void addCallback (Runnable callback) {
+        if (callbacks == null)
+            callbacks = new ArrayList<Runnable>();
+        callbacks.add(callback);
+    }
+
+    // Place Future test code inside of the Future class.
+
+    private static void futureTest1() {
+        Future f = new Future(new IntSupplier () {
+                public int getAsInt() {
+                    KThread.yield();
+                    return 42;
+                }
+            });
+        Future g = f.thenApply(new IntUnaryOperator () {
+                public int applyAsInt(int x) {
+                    return x + 1;
+                }
+            });
+
+        Lib.assertTrue(g.get() == 43 && f.get() == 42);
+        Lib.assertTrue(f.isDone() && g.isDone());
+        // chaining onto a done future applies at once
+        Lib.assertTrue(f.thenApply(new IntUnaryOperator () {
+                public int applyAsInt(int x) {
+                    return -x;
+                }
+            }).isDone());
+        System.out.println("futureTest1 passed");
+    }
+
+    private static void futureTest2() {
+        final KThreadPool pool = new KThreadPool(3);
+        final int numTasks = 50;
+        final HashSet<KThread> workers = new HashSet<KThread>();
+        Future[] futures = new Future[numTasks];
+
+        for (int i = 0; i < numTasks; i++) {
+            final int n = i;
+            futures[i] = pool.submit(new IntSupplier () {
+                    public int getAsInt() {
+                        workers.add(KThread.currentThread());
+                        if (n % 3 == 0)
+                            ThreadedKernel.alarm.waitUntil(100);
+                        return n * n;
+                    }
+                });
+        }
+
+        int[] values = Future.getAll(futures);
+        for (int i = 0; i < numTasks; i++)
+            Lib.assertTrue(values[i] == i * i && futures[i].get() == i * i);
+        Lib.assertTrue(workers.size() <= 3);
+
+        pool.shutdown();
+        System.out.println("futureTest2 passed");
+    }
+
+    public static void selfTest() {
+        futureTest1();
+        futureTest2();
+    }
+
+    private ThreadQueue waitQueue;
+
+    private boolean done = false;
+
+    private int value;
+
+    /** Run once the value is set; <tt>null</tt> when there are none. */
+    private ArrayList<Runnable> callbacks = null;
 }
@@ -21,6 +21,11 @@ public class GameMatch {
      * implementation may assume this number is always greater than zero.
      */
     public GameMatch (int numPlayersInMatch) {
+        Lib.assertTrue(numPlayersInMatch > 0);
+
+        this.numPlayersInMatch = numPlayersInMatch;
+        lock = new Lock();
+        forming = new Group[abilityExpert + 1];
     }
 
     /**
@@ -40,6 +45,121 @@ public class GameMatch {
      * or abilityExpert; return -1 otherwise.
      */
     public int play (int ability) {
-	return -1;
+        if (ability < abilityBeginner || ability > abilityExpert)
+            return -1;
+
+        lock.acquire();
+
+        Group group = forming[ability];
+        if (group == null) {
+            group = newGroup();
+            forming[ability] = group;
+        }
+        group.numPlayers++;
+
+        if (group.numPlayers == numPlayersInMatch) {
+            // the last player forms the match; the next one starts a group
+            group.matchNumber = ++numMatches;
+            forming[ability] = null;
+            group.full.wakeAll();
+        }
+        else {
+            while (group.matchNumber == 0)
+                group.full.sleep();
+        }
+
+        int matchNumber = group.matchNumber;
+        if (--group.numPlayers == 0)
+            freeGroup(group);
+
+        lock.release();
+        return matchNumber;
+    }
+
+    private Group newGroup () {
+        Group group = freeGroups;
+        if (group == null)
+            return new Group();
+
+        freeGroups = group.next;
+        group.next = null;
+        return group;
+    }
+
+    private void freeGroup (Group group) {
+        group.matchNumber = 0;
+        group.next = freeGroups;
+        freeGroups = group;
     }
+
+    /**
+     * The players of one match.  While it is forming, <i>numPlayers</i>
+     * counts the players that have arrived; once it has a match
+     * number, it counts the players that have not yet returned.  The
+     * group is reused once they all have.
+     */
+    private class Group {
+        int numPlayers = 0;
+
+        int matchNumber = 0;
+
+        /** Where the players wait for the match to form. */
+        Condition2 full = new Condition2(lock);
+
+        /** The next group on the free list. */
+        Group next = null;
+    }
+
+    // Place GameMatch test code inside of the GameMatch class.
+
+    // Many players of each ability arrive in a mixed order.  Every
+    // match number from 1 up must be returned to exactly
+    // numPlayersInMatch players, all of the same ability.
+    private static void matchTest (final int numPlayersInMatch, int numMatchesPerAbility) {
+        final GameMatch match = new GameMatch(numPlayersInMatch);
+        int numPlayers = 3 * numPlayersInMatch * numMatchesPerAbility;
+        final int[] playersInMatch = new int[numPlayers / numPlayersInMatch + 1];
+        final int[] abilityOfMatch = new int[playersInMatch.length];
+        KThread[] players = new KThread[numPlayers];
+
+        for (int i = 0; i < numPlayers; i++) {
+            final int ability = abilityBeginner + i % 3;
+            players[i] = new KThread( new Runnable () {
+                public void run() {
+                    int r = match.play(ability);
+                    playersInMatch[r]++;
+                    Lib.assertTrue(abilityOfMatch[r] == 0 || abilityOfMatch[r] == ability);
+                    abilityOfMatch[r] = ability;
+                }
+                });
+            players[i].setName("player " + i);
+            players[i].fork();
+        }
+        for (int i = 0; i < numPlayers; i++)
+            players[i].join();
+
+        for (int r = 1; r < playersInMatch.length; r++)
+            Lib.assertTrue(playersInMatch[r] == numPlayersInMatch);
+        Lib.assertTrue(match.play(0) == -1);
+
+        System.out.println("matchTest(" + numPlayersInMatch + ") passed");
+    }
+
+    public static void selfTest() {
+        matchTest(1, 5);
+        matchTest(2, 10);
+        matchTest(5, 8);
+    }
+
+    private int numPlayersInMatch;
+
+    private Lock lock;
+
+    /** The group each ability is forming, or <tt>null</tt>. */
+    private Group[] forming;
+
+    private Group freeGroups = null;
+
+    /** The number of matches formed so far. */
+    private int numMatches = 0;
 }
@@ -60,6 +60,7 @@ public class KThread {
 		else {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 			readyQueue.acquire(this);
+			schedulerName = ThreadedKernel.scheduler.getClass().getName();
 
 			currentThread = this;
 			tcb = TCB.currentTCB();
@@ -125,6 +126,30 @@ public class KThread {
 		return (name + " (#" + id + ")");
 	}
 
+	/**
+	 * Return the time this thread has spent running, up to the last time it
+	 * stopped running.
+	 */
+	public long getRunTicks() {
+		return runTicks;
+	}
+
+	/**
+	 * Return the time this thread has spent on the ready queue, up to the last
+	 * time it was dispatched.
+	 */
+	public long getReadyTicks() {
+		return readyTicks;
+	}
+
+	/**
+	 * Return the time this thread has spent blocked, up to the last time it
+	 * was made ready.
+	 */
+	public long getBlockedTicks() {
+		return blockedTicks;
+	}
+
 	/**
 	 * Deterministically and consistently compare this thread to another thread.
 	 */
@@ -201,6 +226,7 @@ public class KThread {
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
 
+		currentThread.chargeState();
 		currentThread.status = statusFinished;
 
 		if(currentThread.joined != null) {
@@ -239,6 +265,23 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Test whether the current thread should be preempted by a timer
+	 * interrupt: it has run for at least its scheduler's quantum since it was
+	 * last dispatched, and some other thread is ready to run.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public static boolean timeSliceExpired() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue.isEmpty())
+			return false;
+
+		long ran = Machine.timer().getTime() - currentThread.sliceStart;
+		return ran >= ThreadedKernel.scheduler.getQuantum(currentThread);
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -255,6 +298,7 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
+		currentThread.chargeState();
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
@@ -272,6 +316,7 @@ public class KThread {
 		//System.out.println("Ready? " + isReady());
 		Lib.assertTrue(status != statusReady);
 
+		chargeState();
 		status = statusReady;
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
@@ -388,14 +433,30 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * With <tt>ThreadedKernel.ticklessIdle = true</tt>, the idle thread skips
+	 * the simulated time straight to the next pending interrupt (see
+	 * <tt>Interrupt.idle()</tt>) instead of ticking the clock one yield at a
+	 * time.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		final boolean tickless = Config.getBoolean(
+				"ThreadedKernel.ticklessIdle", false);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					// nothing to switch to until some interrupt readies a thread
+					if (tickless) {
+						Machine.interrupt().idle();
+						if (readyQueue.isEmpty())
+							continue;
+					}
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -446,13 +507,44 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		chargeState();
 		currentThread = this;
+		sliceStart = Machine.timer().getTime();
 
 		tcb.contextSwitch();
 
 		currentThread.restoreState();
 	}
 
+	/**
+	 * Charge the time since this thread last changed state to the state it is
+	 * about to leave, in this thread's totals and in the histograms printed by
+	 * <tt>Stats.print()</tt>. The idle thread is not counted.
+	 */
+	private void chargeState() {
+		long now = Machine.timer().getTime();
+		long ticks = now - stateStart;
+		stateStart = now;
+
+		if (this == idleThread)
+			return;
+
+		switch (status) {
+		case statusRunning:
+			runTicks += ticks;
+			Machine.recordThreadTicks(schedulerName, Stats.ThreadRunning, ticks);
+			break;
+		case statusReady:
+			readyTicks += ticks;
+			Machine.recordThreadTicks(schedulerName, Stats.ThreadReady, ticks);
+			break;
+		case statusBlocked:
+			blockedTicks += ticks;
+			Machine.recordThreadTicks(schedulerName, Stats.ThreadBlocked, ticks);
+			break;
+		}
+	}
+
 	/**
 	 * Prepare this thread to be run. Set <tt>status</tt> to
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
@@ -512,6 +604,69 @@ public class KThread {
 		//joinTest2();
 		//joinTest3();
 		//joinTest4();
+		//accountingTest();
+	}
+
+	/**
+	 * Check that the time a thread spends running, ready and blocked adds up
+	 * to its lifetime, for a thread that does all three.
+	 */
+	public static void accountingTest() {
+		final long[] end = new long[1];
+
+		KThread child = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 5; i++) {
+					KThread.yield();
+					ThreadedKernel.alarm.waitUntil(1000);
+				}
+				end[0] = Machine.timer().getTime();
+			}
+		}).setName("accounted");
+
+		long start = Machine.timer().getTime();
+		child.fork();
+		child.join();
+
+		Lib.assertTrue(child.getBlockedTicks() >= 5 * 1000);
+		Lib.assertTrue(child.getRunTicks() + child.getReadyTicks()
+				+ child.getBlockedTicks() == end[0] - start);
+
+		System.out.println("accountingTest: run " + child.getRunTicks()
+				+ ", ready " + child.getReadyTicks() + ", blocked "
+				+ child.getBlockedTicks());
+	}
+
+	/**
+	 * Measure the cost of a context switch: two threads hand the CPU back and
+	 * forth with <tt>yield()</tt> <i>switches</i> times, and the wall-clock
+	 * time and simulated ticks per switch are printed. Assumes nothing else is
+	 * on the ready queue.
+	 * 
+	 * @param switches the number of yields each thread makes.
+	 */
+	public static void yieldBenchmark(final int switches) {
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < switches; i++)
+					KThread.yield();
+			}
+		}).setName("yield partner");
+
+		long startTicks = Machine.timer().getTime();
+		long startTime = System.nanoTime();
+
+		partner.fork();
+		for (int i = 0; i < switches; i++)
+			KThread.yield();
+		partner.join();
+
+		long elapsed = System.nanoTime() - startTime;
+		long ticks = Machine.timer().getTime() - startTicks;
+
+		System.out.println("yield ping-pong: " + 2 * switches + " switches, "
+				+ (elapsed / (2L * switches)) + " ns and "
+				+ ((double) ticks / (2 * switches)) + " ticks per switch");
 	}
 
 	private static final char dbgThread = 't';
@@ -539,6 +694,18 @@ public class KThread {
 	 * the ready queue and not running).
 	 */
 	private int status = statusNew;
+
+	/** When this thread was last dispatched, for <tt>timeSliceExpired()</tt>. */
+	private long sliceStart = 0;
+
+	/** When this thread last changed state, for <tt>chargeState()</tt>. */
+	private long stateStart = 0;
+
+	private long runTicks = 0;
+
+	private long readyTicks = 0;
+
+	private long blockedTicks = 0;
 	
 	private KThread joined = null;
 
@@ -559,6 +726,9 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The class name of the kernel's scheduler, to label statistics. */
+	private static String schedulerName = null;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
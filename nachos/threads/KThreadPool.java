@@ -0,0 +1,109 @@
+package nachos.threads;
+
+import java.util.LinkedList;
+import java.util.function.IntSupplier;
+
+import nachos.machine.*;
+
+/**
+ * A fixed set of worker <tt>KThread</tt>s that run submitted functions, so
+ * that running a function asynchronously does not have to fork a thread.
+ * Functions run in the order they were submitted, each to completion on one
+ * worker, so a function that blocks holds up its worker.
+ */
+public class KThreadPool {
+	/**
+	 * Allocate a new pool and fork its workers.
+	 * 
+	 * @param numWorkers the number of worker threads.
+	 */
+	public KThreadPool(int numWorkers) {
+		Lib.assertTrue(numWorkers > 0);
+
+		lock = new Lock();
+		workAvailable = new Condition2(lock);
+		tasks = new LinkedList<Task>();
+
+		workers = new KThread[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName("pool worker " + i);
+			workers[i].fork();
+		}
+	}
+
+	/**
+	 * Arrange for <i>function</i> to be run by a worker.
+	 * 
+	 * @param function the function to run.
+	 * @return a <tt>Future</tt> for the value of <i>function</i>.
+	 */
+	public Future submit(IntSupplier function) {
+		Task task = new Task(function);
+
+		lock.acquire();
+		Lib.assertTrue(!shuttingDown);
+		tasks.add(task);
+		workAvailable.wake();
+		lock.release();
+
+		return task.future;
+	}
+
+	/**
+	 * Let the workers finish the functions already submitted, and wait for
+	 * them to exit. No function may be submitted afterwards.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		Lib.assertTrue(!shuttingDown);
+		shuttingDown = true;
+		workAvailable.wakeAll();
+		lock.release();
+
+		for (KThread worker : workers)
+			worker.join();
+	}
+
+	private void work() {
+		while (true) {
+			lock.acquire();
+			while (tasks.isEmpty() && !shuttingDown)
+				workAvailable.sleep();
+
+			if (tasks.isEmpty()) {
+				lock.release();
+				return;
+			}
+
+			Task task = tasks.removeFirst();
+			lock.release();
+
+			task.future.complete(task.function.getAsInt());
+		}
+	}
+
+	private static class Task {
+		Task(IntSupplier function) {
+			this.function = function;
+			future = new Future();
+		}
+
+		IntSupplier function;
+
+		Future future;
+	}
+
+	private Lock lock;
+
+	private Condition2 workAvailable;
+
+	private LinkedList<Task> tasks;
+
+	private KThread[] workers;
+
+	private boolean shuttingDown = false;
+}
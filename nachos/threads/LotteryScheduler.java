@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -41,7 +37,429 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	/**
+	 * Return the effective number of tickets of a thread: its own, plus those
+	 * of every thread waiting on a queue it owns. The total can exceed
+	 * <tt>Integer.MAX_VALUE</tt>, in which case that is returned.
+	 */
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	/**
+	 * Return the time slice of a thread. Lottery scheduling shares the CPU
+	 * through the draws, so every thread gets the base quantum.
+	 */
+	public long getQuantum(KThread thread) {
+		return quantum;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Tests whether this module is working. Uses its own scheduler and threads
+	 * that are never forked, so it does not matter which scheduler the kernel
+	 * is running.
+	 */
+	public static void selfTest() {
+		LotteryScheduler sched = new LotteryScheduler();
+		ThreadQueue lock1 = sched.newThreadQueue(true);
+		ThreadQueue lock2 = sched.newThreadQueue(true);
+		ThreadQueue ready = sched.newThreadQueue(false);
+
+		KThread[] t = new KThread[4];
+		for (int i = 0; i < t.length; i++)
+			t[i] = new KThread(null).setName("lottery test " + i);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		sched.setPriority(t[1], 10);
+		sched.setPriority(t[2], priorityMaximum);
+		sched.setPriority(t[3], priorityMaximum);
+
+		// tickets add up along the chain t3 -> lock2 (t2) -> lock1 (t0)
+		lock1.acquire(t[0]);
+		lock1.waitForAccess(t[1]);
+		Lib.assertTrue(sched.getEffectivePriority(t[0]) == 11);
+
+		lock2.acquire(t[2]);
+		lock1.waitForAccess(t[2]);
+		lock2.waitForAccess(t[3]);
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == priorityMaximum);
+		Lib.assertTrue(sched.getLotteryState(t[0]).effectiveTickets == 11L + 2L * priorityMaximum);
+
+		Lib.assertTrue(lock2.cancelThread(t[3]));
+		Lib.assertTrue(sched.getLotteryState(t[0]).effectiveTickets == 11L + priorityMaximum);
+
+		// t2 holds nearly all the tickets, so it wins in all likelihood
+		KThread winner = lock1.nextThread();
+		Lib.assertTrue(winner == t[1] || winner == t[2]);
+		Lib.assertTrue(sched.getEffectivePriority(t[0]) == 1);
+		Lib.assertTrue(lock1.nextThread() == (winner == t[1] ? t[2] : t[1]));
+		Lib.assertTrue(lock1.nextThread() == null);
+
+		// draws are proportional to tickets
+		int[] wins = new int[2];
+		for (int i = 0; i < 1000; i++) {
+			ready.waitForAccess(t[0]);
+			ready.waitForAccess(t[1]);
+			KThread next = ready.nextThread();
+			Lib.assertTrue(ready.cancelThread(next == t[0] ? t[1] : t[0]));
+			wins[next == t[0] ? 0 : 1]++;
+		}
+		Lib.assertTrue(wins[1] > 800);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("LotteryScheduler.selfTest passed");
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 * 
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot of a Fenwick tree holding its
+	 * effective tickets, so both drawing the winner and changing one thread's
+	 * tickets take O(log n) time. Ticket totals are kept as <tt>long</tt>s.
+	 * Freed slots are reused, and the tree doubles in size when it fills.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			if (numFree == 0)
+				grow();
+
+			int slot = freeSlots[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+			state.waitingOn = this;
+			numWaiting++;
+
+			update(slot, state.effectiveTickets);
+			if (transferPriority && owner != null)
+				owner.addTickets(state.effectiveTickets);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			Lib.assertTrue(state.waitingOn != this);
+
+			setOwner(state);
+		}
+
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner == getLotteryState(thread))
+				setOwner(null);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (numWaiting == 0) {
+				setOwner(null);
+				return null;
+			}
+
+			LotteryState winner = slots[draw()];
+			remove(winner);
+			setOwner(winner);
+
+			return winner.thread;
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		public boolean isEmpty() {
+			return numWaiting == 0;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ("
+							+ slots[i].effectiveTickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the waiter in <i>slot</i>.
+		 */
+		void update(int slot, long delta) {
+			for (int i = slot; i < tree.length; i += i & -i)
+				tree[i] += delta;
+			total += delta;
+		}
+
+		/**
+		 * Return the slot holding a randomly drawn ticket.
+		 */
+		private int draw() {
+			long ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the first slot whose prefix sum exceeds ticket
+			int slot = 0;
+			for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+				if (slot + step < tree.length && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return slot + 1;
+		}
+
+		private void remove(LotteryState state) {
+			int slot = state.slot;
+
+			update(slot, -state.effectiveTickets);
+			if (transferPriority && owner != null)
+				owner.addTickets(-state.effectiveTickets);
+
+			slots[slot] = null;
+			freeSlots[numFree++] = slot;
+			numWaiting--;
+
+			state.waitingOn = null;
+			state.slot = 0;
+		}
+
+		private void setOwner(LotteryState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			if (owner != null)
+				owner.addTickets(-total);
+
+			owner = state;
+
+			if (owner != null)
+				owner.addTickets(total);
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree.
+		 */
+		private void grow() {
+			int capacity = slots.length - 1;
+			int newCapacity = Math.max(capacity * 2, 4);
+
+			LotteryState[] oldSlots = slots;
+			slots = new LotteryState[newCapacity + 1];
+			tree = new long[newCapacity + 1];
+
+			for (int i = 1; i <= capacity; i++) {
+				slots[i] = oldSlots[i];
+				if (slots[i] != null) {
+					for (int j = i; j <= newCapacity; j += j & -j)
+						tree[j] += slots[i].effectiveTickets;
+				}
+			}
+
+			freeSlots = new int[newCapacity];
+			numFree = 0;
+			for (int i = newCapacity; i > capacity; i--)
+				freeSlots[numFree++] = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting thread in each slot, indexed from 1. */
+		private LotteryState[] slots = new LotteryState[1];
+
+		/** The Fenwick tree over the slots' effective tickets. */
+		private long[] tree = new long[1];
+
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+
+		private int numWaiting = 0;
+
+		/** The effective tickets of all waiting threads. */
+		private long total = 0;
+
+		/** The thread that last acquired this queue, if it transfers tickets. */
+		private LotteryState owner = null;
 	}
+
+	/**
+	 * The lottery state of a thread: its own tickets, its effective tickets,
+	 * and the queue it is waiting on, if any.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the number of tickets held by the associated thread.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			int old = this.tickets;
+			this.tickets = tickets;
+
+			addTickets((long) tickets - old);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread,
+		 * and to those of every thread it donates to. Stops at a thread it has
+		 * already visited, so a cycle of waiting threads cannot loop forever.
+		 */
+		void addTickets(long delta) {
+			long pass = ++numPasses;
+
+			LotteryState state = this;
+			while (state != null && delta != 0 && state.lastPass != pass) {
+				state.lastPass = pass;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitingOn;
+				if (queue == null)
+					break;
+
+				queue.update(state.slot, delta);
+
+				state = (queue.transferPriority ? queue.owner : null);
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets held by the associated thread itself. */
+		protected int tickets = priorityDefault;
+
+		/** Its own tickets plus all those donated to it. */
+		protected long effectiveTickets = priorityDefault;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitingOn = null;
+
+		/** The slot of the associated thread in <tt>waitingOn</tt>. */
+		private int slot = 0;
+
+		/** The last pass of <tt>addTickets()</tt> to visit this thread. */
+		private long lastPass = 0;
+	}
+
+	/** Counts passes of <tt>addTickets()</tt>. */
+	private long numPasses = 0;
 }
@@ -0,0 +1,356 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler.
+ * 
+ * <p>
+ * Every thread is at one of <tt>MLFQScheduler.levels</tt> levels, 0 being the
+ * most urgent. Queues hand out threads from the lowest non-empty level, in
+ * FIFO order within a level. A thread starts at level 0. It is demoted one
+ * level when it has used up the CPU allotment of its level, which is
+ * <tt>Stats.TimerTicks</tt> at level 0 and doubles at each level below, so a
+ * thread that keeps being preempted by the timer sinks. It is promoted one
+ * level when it is made ready by another thread, that is, after it blocked on
+ * a lock, semaphore, condition, alarm or I/O. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks all threads are moved back to
+ * level 0, so that CPU-bound threads cannot starve.
+ * 
+ * <p>
+ * CPU time is measured with <tt>Machine.timer().getTime()</tt>, charged to the
+ * current thread whenever it gives up the CPU or a thread is taken off any
+ * queue.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				20 * Stats.TimerTicks);
+
+		Lib.assertTrue(numLevels > 0 && numLevels < 31 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue. Priority is never transferred.
+	 * 
+	 * @param transferPriority ignored.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread, derived from its level so
+	 * that, as for the other schedulers, a larger priority is more urgent:
+	 * <tt>numLevels - 1</tt> at level 0, down to 0 at the lowest level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).level;
+	}
+
+	/**
+	 * Return the priority of the specified thread. Priority is never
+	 * transferred, so this is the same as <tt>getPriority()</tt>.
+	 */
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Return the time slice of a thread: its level's CPU allotment, or the base
+	 * quantum if that is longer. A thread that has sunk to a lower level thus
+	 * runs longer between switches.
+	 */
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return Math.max(quantum,
+				(long) Stats.TimerTicks << getThreadState(thread).level);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		state.checkBoost();
+		return state;
+	}
+
+	/**
+	 * Return the number of boosts there have been so far.
+	 */
+	private long currentBoost() {
+		return Machine.timer().getTime() / boostInterval;
+	}
+
+	/**
+	 * Charge the CPU time used since the current thread was last charged.
+	 */
+	private void chargeCurrentThread() {
+		KThread current = KThread.currentThread();
+		if (current != null)
+			getThreadState(current).charge();
+	}
+
+	/**
+	 * Tests whether this module is working. Forks a CPU-bound thread that is
+	 * only preempted by the timer and an interactive thread that sleeps
+	 * between short bursts, and checks that the first sinks while the second
+	 * ends up at the top level. Only meaningful with <tt>MLFQScheduler</tt> as
+	 * the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+			return;
+
+		final int top = ((MLFQScheduler) ThreadedKernel.scheduler).numLevels - 1;
+		final int[] priorities = { top, 0 };
+
+		KThread cpuBound = new KThread(new Runnable() {
+			public void run() {
+				long end = Machine.timer().getTime() + 8 * Stats.TimerTicks;
+				while (Machine.timer().getTime() < end) {
+					// each enable ticks the clock, so timer interrupts arrive
+					Machine.interrupt().disable();
+					priorities[0] = Math.min(priorities[0],
+							ThreadedKernel.scheduler.getPriority());
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("cpu bound");
+
+		KThread interactive = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 8; i++)
+					ThreadedKernel.alarm.waitUntil(Stats.TimerTicks / 2);
+				boolean intStatus = Machine.interrupt().disable();
+				priorities[1] = ThreadedKernel.scheduler.getPriority();
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("interactive");
+
+		cpuBound.fork();
+		interactive.fork();
+		cpuBound.join();
+		interactive.join();
+
+		Lib.assertTrue(priorities[0] < top && priorities[1] == top);
+
+		System.out.println("MLFQScheduler.selfTest passed");
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			lists = new ArrayList<LinkedList<ThreadState>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				lists.add(new LinkedList<ThreadState>());
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			if (thread == KThread.currentThread())
+				state.charge();
+			else
+				state.promote();
+
+			state.waitSequence = numWaits++;
+			checkBoost();
+			lists.get(state.level).add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+			checkBoost();
+
+			for (LinkedList<ThreadState> list : lists) {
+				if (!list.isEmpty()) {
+					ThreadState next = list.removeFirst();
+					next.lastCharged = Machine.timer().getTime();
+					return next.thread;
+				}
+			}
+
+			return null;
+		}
+
+		public boolean cancelThread(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			for (LinkedList<ThreadState> list : lists) {
+				if (list.remove(state))
+					return true;
+			}
+
+			return false;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (LinkedList<ThreadState> list : lists)
+				Lib.assertTrue(list.isEmpty());
+		}
+
+		public boolean isEmpty() {
+			for (LinkedList<ThreadState> list : lists) {
+				if (!list.isEmpty())
+					return false;
+			}
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (ThreadState state : lists.get(level))
+					System.out.print(state.thread + " (" + level + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * If there has been a boost since this queue last looked, move every
+		 * waiting thread to level 0, keeping them in the order they arrived.
+		 */
+		private void checkBoost() {
+			long boost = currentBoost();
+			if (boost == lastBoost)
+				return;
+
+			lastBoost = boost;
+
+			LinkedList<ThreadState> top = lists.get(0);
+			for (int level = 1; level < numLevels; level++) {
+				top.addAll(lists.get(level));
+				lists.get(level).clear();
+			}
+
+			Collections.sort(top, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return Long.compare(a.waitSequence, b.waitSequence);
+				}
+			});
+
+			for (ThreadState state : top)
+				state.checkBoost();
+		}
+
+		private ArrayList<LinkedList<ThreadState>> lists;
+
+		private long lastBoost = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and the CPU time it has
+	 * used at that level.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+
+			lastCharged = Machine.timer().getTime();
+			lastBoost = currentBoost();
+		}
+
+		/**
+		 * Charge the associated thread for the CPU time since it was last
+		 * charged, demoting it if it has used up its allotment.
+		 */
+		void charge() {
+			long now = Machine.timer().getTime();
+			used += now - lastCharged;
+			lastCharged = now;
+
+			if (used >= ((long) Stats.TimerTicks << level)) {
+				if (level < numLevels - 1)
+					level++;
+				used = 0;
+			}
+		}
+
+		/**
+		 * Move the associated thread up a level, after it blocked.
+		 */
+		void promote() {
+			if (level > 0)
+				level--;
+			used = 0;
+		}
+
+		/**
+		 * Move the associated thread to level 0 if there has been a boost
+		 * since it was last looked at.
+		 */
+		void checkBoost() {
+			long boost = currentBoost();
+			if (boost == lastBoost)
+				return;
+
+			lastBoost = boost;
+			level = 0;
+			used = 0;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The level of the associated thread. */
+		protected int level = 0;
+
+		/** The CPU time used at this level. */
+		private long used = 0;
+
+		/** When the associated thread was last charged for CPU time. */
+		private long lastCharged;
+
+		/** The boost the level was last checked against. */
+		private long lastBoost;
+
+		/** Orders threads that wait at the same level. */
+		private long waitSequence;
+	}
+
+	private int numLevels;
+
+	private int boostInterval;
+
+	/** Counts calls to <tt>waitForAccess()</tt>, to order waiters. */
+	private long numWaits = 0;
+}
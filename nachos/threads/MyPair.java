@@ -3,6 +3,9 @@ package nachos.threads;
 public class MyPair {
     public Long wakeTime;
     public KThread thread;
+    // order of equal wake times, and slot in the alarm's heap
+    public long sequence;
+    public int heapIndex = -1;
 
     public MyPair(Long wakeTime, KThread thread) {
         this.wakeTime = wakeTime;
@@ -16,4 +19,10 @@ public class MyPair {
     public KThread getThread() {
         return this.thread;
     }
+
+    // called by the alarm when the wake time passes or the timer is
+    // cancelled, after taking this pair off its heap
+    public void expire() {
+        this.thread.ready();
+    }
 }
@@ -1,10 +1,8 @@
 package nachos.threads;
 
-import nachos.machine.*;
+import java.util.ArrayList;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import nachos.machine.*;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -65,6 +63,17 @@ public class PriorityScheduler extends Scheduler {
 		getThreadState(thread).setPriority(priority);
 	}
 
+	/**
+	 * Return the time slice of a thread: the base quantum times one more than
+	 * its effective priority, so that higher priority threads are switched
+	 * out less often.
+	 */
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return super.getQuantum(thread) * (1 + getEffectivePriority(thread));
+	}
+
 	public boolean increasePriority() {
 		boolean intStatus = Machine.interrupt().disable();
 		boolean ret = true;
@@ -97,6 +106,76 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Tests whether this module is working. Uses its own scheduler and threads
+	 * that are never forked, so it does not matter which scheduler the kernel
+	 * is running.
+	 */
+	public static void selfTest() {
+		PriorityScheduler sched = new PriorityScheduler();
+		ThreadQueue lock1 = sched.newThreadQueue(true);
+		ThreadQueue lock2 = sched.newThreadQueue(true);
+		ThreadQueue ready = sched.newThreadQueue(false);
+
+		KThread[] t = new KThread[5];
+		for (int i = 0; i < t.length; i++)
+			t[i] = new KThread(null).setName("priority test " + i);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		sched.setPriority(t[1], 5);
+		sched.setPriority(t[2], 3);
+		sched.setPriority(t[3], 5);
+		sched.setPriority(t[4], 7);
+
+		// t0 holds lock1 and is ready; t1..t3 wait for it
+		lock1.acquire(t[0]);
+		ready.waitForAccess(t[0]);
+		lock1.waitForAccess(t[1]);
+		lock1.waitForAccess(t[2]);
+		lock1.waitForAccess(t[3]);
+		Lib.assertTrue(sched.getEffectivePriority(t[0]) == 5);
+
+		// highest priority first, FIFO among equals
+		Lib.assertTrue(lock1.nextThread() == t[1]);
+		Lib.assertTrue(sched.getEffectivePriority(t[0]) == 1);
+		Lib.assertTrue(sched.getEffectivePriority(t[1]) == 5);
+
+		// donation follows the chain t4 -> lock2 (t2) -> lock1 (t1)
+		lock2.acquire(t[2]);
+		lock2.waitForAccess(t[4]);
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == 7);
+		Lib.assertTrue(sched.getEffectivePriority(t[1]) == 7);
+
+		// and is withdrawn along it
+		Lib.assertTrue(lock2.cancelThread(t[4]));
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == 3);
+		Lib.assertTrue(sched.getEffectivePriority(t[1]) == 5);
+
+		Lib.assertTrue(lock1.nextThread() == t[3]);
+		Lib.assertTrue(lock1.nextThread() == t[2]);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == 3);
+		Lib.assertTrue(ready.nextThread() == t[0]);
+
+		// a waiter donates to every thread sharing access
+		lock1.acquireShared(t[0]);
+		lock1.acquireShared(t[2]);
+		lock1.waitForAccess(t[4]);
+		Lib.assertTrue(sched.getEffectivePriority(t[0]) == 7);
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == 7);
+		lock1.release(t[0]);
+		Lib.assertTrue(sched.getEffectivePriority(t[0]) == 1);
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == 7);
+		Lib.assertTrue(lock1.cancelThread(t[4]));
+		Lib.assertTrue(sched.getEffectivePriority(t[2]) == 3);
+		lock1.release(t[2]);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("PriorityScheduler.selfTest passed");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -127,6 +206,19 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO bucket per effective priority, and
+	 * a bit mask records which buckets are non-empty, so the next thread is
+	 * found with a single bit scan. Buckets are linked through the waiters'
+	 * <tt>ThreadState</tt>s, so a thread whose effective priority changes
+	 * while it waits is moved between buckets without searching.
+	 * 
+	 * <p>
+	 * If the queue transfers priority, the highest effective priority among
+	 * its waiters is donated to its owner, and to every thread sharing access
+	 * to it. The donation is only passed on when that highest priority
+	 * changes.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -143,16 +235,56 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).acquire(this);
 		}
 
+		public void acquireShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!transferPriority)
+				return;
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitingOn != this && !sharers.contains(state));
+
+			sharers.add(state);
+			state.changeDonation(-1, donated);
+		}
+
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!transferPriority)
+				return;
+
+			ThreadState state = getThreadState(thread);
+			if (owner == state)
+				setOwner(null);
+			else if (sharers.remove(state))
+				state.changeDonation(donated, -1);
+		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		public boolean cancelThread(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return false;
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			return true;
 		}
 
 		/**
@@ -162,13 +294,135 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			int top = topPriority();
+			return (top < 0 ? null : heads[top]);
+		}
+
+		public boolean isEmpty() {
+			return nonEmpty == 0;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (ThreadState s = heads[p]; s != null; s = s.nextWaiter)
+					System.out.print(s.thread + " (" + p + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, or -1
+		 * if no thread is waiting.
+		 */
+		int topPriority() {
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		/**
+		 * Add a thread to the bucket for its effective priority, behind every
+		 * thread in that bucket that has been waiting longer.
+		 */
+		void insert(ThreadState state) {
+			int p = state.effectivePriority;
+
+			ThreadState after = tails[p];
+			while (after != null && after.waitSequence > state.waitSequence)
+				after = after.prevWaiter;
+
+			state.prevWaiter = after;
+			state.nextWaiter = (after == null ? heads[p] : after.nextWaiter);
+
+			if (state.prevWaiter == null)
+				heads[p] = state;
+			else
+				state.prevWaiter.nextWaiter = state;
+
+			if (state.nextWaiter == null)
+				tails[p] = state;
+			else
+				state.nextWaiter.prevWaiter = state;
+
+			nonEmpty |= 1 << p;
+		}
+
+		/**
+		 * Unlink a thread from the bucket for priority <i>p</i>.
+		 */
+		void unlink(ThreadState state, int p) {
+			if (state.prevWaiter == null)
+				heads[p] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+
+			if (state.nextWaiter == null)
+				tails[p] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+
+			state.prevWaiter = state.nextWaiter = null;
+
+			if (heads[p] == null)
+				nonEmpty &= ~(1 << p);
+		}
+
+		/**
+		 * Remove a waiting thread from this queue.
+		 */
+		void remove(ThreadState state) {
+			unlink(state, state.effectivePriority);
+			state.waitingOn = null;
+
+			updateDonation();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed from
+		 * <i>oldPriority</i> to the bucket for its new one.
+		 */
+		void reposition(ThreadState state, int oldPriority) {
+			unlink(state, oldPriority);
+			insert(state);
+
+			updateDonation();
+		}
+
+		/**
+		 * Make <i>state</i> the owner of this queue, moving the donation from
+		 * the old owner to the new one.
+		 */
+		void setOwner(ThreadState state) {
+			if (!transferPriority || owner == state)
+				return;
+
+			if (owner != null)
+				owner.changeDonation(donated, -1);
+
+			owner = state;
+
+			if (owner != null)
+				owner.changeDonation(-1, donated);
+		}
+
+		/**
+		 * Pass a change in the highest waiting priority on to the owner.
+		 */
+		void updateDonation() {
+			if (!transferPriority)
+				return;
+
+			int top = topPriority();
+			if (top == donated)
+				return;
+
+			int old = donated;
+			donated = top;
+
+			if (owner != null)
+				owner.changeDonation(old, top);
+			for (ThreadState sharer : sharers)
+				sharer.changeDonation(old, top);
 		}
 
 		/**
@@ -176,6 +430,23 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The first and last waiting thread of each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if some thread of priority <i>p</i> waits. */
+		private int nonEmpty = 0;
+
+		/** The thread that last acquired this queue, if it transfers priority. */
+		private ThreadState owner = null;
+
+		/** The threads sharing access, which are also donated to. */
+		private ArrayList<ThreadState> sharers = new ArrayList<ThreadState>(0);
+
+		/** The priority donated to <tt>owner</tt> and the sharers, or -1. */
+		private int donated = -1;
 	}
 
 	/**
@@ -183,6 +454,11 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached. Rather than keeping the queues it owns,
+	 * a thread counts how many of them donate each priority, so it can find its
+	 * highest donation without looking at any queue.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -213,8 +489,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -228,7 +503,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -244,7 +519,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitSequence = numWaits++;
+
+			waitQueue.insert(this);
+			waitQueue.updateDonation();
 		}
 
 		/**
@@ -258,7 +539,47 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn != waitQueue);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Replace a donation of <i>oldPriority</i> from one of the queues this
+		 * thread owns with one of <i>newPriority</i>. Either may be -1, for no
+		 * donation.
+		 */
+		void changeDonation(int oldPriority, int newPriority) {
+			if (oldPriority >= 0)
+				donations[oldPriority]--;
+			if (newPriority >= 0)
+				donations[newPriority]++;
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority, and if it changed, move this
+		 * thread within the queue it is waiting on. That may in turn change
+		 * the donation to that queue's owner.
+		 */
+		private void updateEffectivePriority() {
+			int effective = priority;
+			for (int p = priorityMaximum; p > effective; p--) {
+				if (donations[p] > 0) {
+					effective = p;
+					break;
+				}
+			}
+
+			if (effective == effectivePriority)
+				return;
+
+			int old = effectivePriority;
+			effectivePriority = effective;
+
+			if (waitingOn != null)
+				waitingOn.reposition(this, old);
 		}
 
 		/** The thread with which this object is associated. */
@@ -266,5 +587,28 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/**
+		 * How many queues owned by the associated thread donate each
+		 * priority.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** Orders threads that wait at the same priority. */
+		private long waitSequence;
+
+		/** The neighbours of this thread in its bucket of <tt>waitingOn</tt>. */
+		private ThreadState prevWaiter = null;
+
+		private ThreadState nextWaiter = null;
 	}
+
+	/** Counts calls to <tt>waitForAccess()</tt>, to order waiters. */
+	private long numWaits = 0;
 }
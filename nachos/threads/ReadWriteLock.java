@@ -0,0 +1,361 @@
+package nachos.threads;
+
+import java.util.HashSet;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that many threads can hold at once for
+ * reading, or one thread can hold for writing. The operations are:
+ * 
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no thread holds or waits to hold the
+ * lock for writing, and then hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, and then
+ * hold it for writing.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give up the lock,
+ * letting the waiting threads that can proceed hold it.
+ * </ul>
+ * 
+ * <p>
+ * Writers are preferred: once a writer waits, threads that then try to read
+ * wait behind it, so a stream of readers cannot starve it. When a writer
+ * releases the lock, all the readers waiting at that moment are let in
+ * together, before the next writer, so writers cannot starve readers either.
+ * 
+ * <p>
+ * The lock is not reentrant: a thread holding it for reading must not
+ * acquire it again, for reading or writing, under any scheduler.
+ * 
+ * <p>
+ * The waiting threads donate priority, through <tt>ThreadQueue</tt>s that
+ * transfer priority, to every thread holding the lock: to the writer, or to
+ * all of the readers.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new reader-writer lock. The lock will initially be
+	 * <i>free</i>.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Atomically acquire this lock for reading. The current thread must not
+	 * already hold this lock.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread()
+				&& !isReadHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || !writeQueue.isEmpty()) {
+			readQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			addReader(thread);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock, which the current thread holds for reading.
+	 */
+	public void releaseRead() {
+		Lib.assertTrue(isReadHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		readers.remove(thread);
+		readQueue.release(thread);
+		writeQueue.release(thread);
+
+		if (readers.isEmpty())
+			admitWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically acquire this lock for writing. The current thread must not
+	 * already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread()
+				&& !isReadHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || !readers.isEmpty()) {
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			writeQueue.acquire(thread);
+			readQueue.acquireShared(thread);
+			writer = thread;
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock, which the current thread holds for writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		writer = null;
+		writeQueue.release(thread);
+		readQueue.release(thread);
+
+		if (readQueue.isEmpty())
+			admitWriter();
+		else
+			admitReaders();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 * 
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Test if the current thread holds this lock for reading.
+	 * 
+	 * @return true if the current thread holds this lock for reading.
+	 */
+	public boolean isReadHeldByCurrentThread() {
+		return readers.contains(KThread.currentThread());
+	}
+
+	/**
+	 * Let the next waiting writer, if any, hold the free lock. Readers only
+	 * wait while a writer holds the lock or waits for it, so there is one if
+	 * any reader waits.
+	 */
+	private void admitWriter() {
+		if ((writer = writeQueue.nextThread()) != null) {
+			readQueue.acquireShared(writer);
+			writer.ready();
+		}
+	}
+
+	/**
+	 * Let every waiting reader hold the free lock.
+	 */
+	private void admitReaders() {
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			addReader(thread);
+			thread.ready();
+		}
+	}
+
+	private void addReader(KThread thread) {
+		readers.add(thread);
+		readQueue.acquireShared(thread);
+		writeQueue.acquireShared(thread);
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		sharingTest();
+		preferenceTest();
+		donationTest();
+	}
+
+	/**
+	 * Readers and writers take turns on shared data: readers must overlap,
+	 * and no one may be inside while a writer is.
+	 */
+	private static void sharingTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final int[] inside = new int[2], maxReaders = new int[1];
+		KThread[] threads = new KThread[12];
+
+		for (int i = 0; i < threads.length; i++) {
+			final boolean writing = (i % 4 == 0);
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 10; j++) {
+						if (writing) {
+							lock.acquireWrite();
+							Lib.assertTrue(inside[0] == 0 && inside[1] == 0);
+							inside[1]++;
+							KThread.yield();
+							inside[1]--;
+							lock.releaseWrite();
+						}
+						else {
+							lock.acquireRead();
+							Lib.assertTrue(lock.isReadHeldByCurrentThread());
+							Lib.assertTrue(inside[1] == 0);
+							maxReaders[0] = Math.max(maxReaders[0], ++inside[0]);
+							KThread.yield();
+							inside[0]--;
+							lock.releaseRead();
+							Lib.assertTrue(!lock.isReadHeldByCurrentThread());
+						}
+						KThread.yield();
+					}
+				}
+			}).setName((writing ? "writer " : "reader ") + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		Lib.assertTrue(maxReaders[0] > 1);
+
+		System.out.println("ReadWriteLock sharing test passed");
+	}
+
+	/**
+	 * Readers arriving while a writer waits go after the writer, and are let
+	 * in together when it is done.
+	 */
+	private static void preferenceTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final int[] arrived = new int[1], maxReaders = new int[1];
+		final StringBuffer order = new StringBuffer();
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				arrived[0]++;
+				lock.acquireWrite();
+				order.append('w');
+				lock.releaseWrite();
+			}
+		}).setName("preferred writer");
+
+		Runnable reader = new Runnable() {
+			public void run() {
+				arrived[0]++;
+				lock.acquireRead();
+				maxReaders[0] = Math.max(maxReaders[0], lock.readers.size());
+				order.append('r');
+				lock.releaseRead();
+			}
+		};
+		KThread late1 = new KThread(reader).setName("late reader 1");
+		KThread late2 = new KThread(reader).setName("late reader 2");
+
+		lock.acquireRead();
+		writer.fork();
+		while (arrived[0] < 1)
+			KThread.yield();
+		late1.fork();
+		late2.fork();
+		while (arrived[0] < 3)
+			KThread.yield();
+		Lib.assertTrue(order.length() == 0);
+		lock.releaseRead();
+
+		writer.join();
+		late1.join();
+		late2.join();
+
+		Lib.assertTrue(order.toString().equals("wrr") && maxReaders[0] == 2);
+
+		System.out.println("ReadWriteLock preference test passed");
+	}
+
+	/**
+	 * Under the priority scheduler, a waiting writer donates its priority to
+	 * every reader, and stops when they release the lock.
+	 */
+	private static void donationTest() {
+		// the lottery scheduler only donates to one thread
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler)
+				|| ThreadedKernel.scheduler instanceof LotteryScheduler)
+			return;
+
+		final ReadWriteLock lock = new ReadWriteLock();
+		final Semaphore release = new Semaphore(0);
+		final KThread[] readers = new KThread[2];
+
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquireRead();
+					release.P();
+					lock.releaseRead();
+				}
+			}).setName("donee reader " + i);
+		}
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				lock.releaseWrite();
+			}
+		}).setName("donor writer");
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(writer,
+				PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		for (KThread reader : readers)
+			reader.fork();
+		KThread.yield();
+		writer.fork();
+		KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		for (KThread reader : readers)
+			Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(reader)
+					== PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		for (KThread reader : readers)
+			release.V();
+		writer.join();
+
+		intStatus = Machine.interrupt().disable();
+		for (KThread reader : readers)
+			Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(reader)
+					== PriorityScheduler.priorityDefault);
+		Machine.interrupt().restore(intStatus);
+
+		for (KThread reader : readers)
+			reader.join();
+
+		System.out.println("ReadWriteLock donation test passed");
+	}
+
+	/** The thread holding this lock for writing, or <tt>null</tt>. */
+	private KThread writer = null;
+
+	/** The threads holding this lock for reading. */
+	private HashSet<KThread> readers = new HashSet<KThread>();
+
+	/** Where readers wait, donating to the holders of the lock. */
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	/** Where writers wait, donating to the holders of the lock. */
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -1,28 +1,26 @@
 package nachos.threads;
 
-import java.util.HashMap;
-
 import nachos.machine.*;
 
 /**
  * A <i>Rendezvous</i> allows threads to synchronously exchange values.
+ *
+ * <p>
+ * The first thread to arrive at a tag leaves its value and the thread in a
+ * <tt>Slot</tt>, found by tag in an open-addressing table keyed by the
+ * primitive <tt>int</tt>. The second thread takes the slot out of the
+ * table, swaps values and wakes the first, which returns the slot to a free
+ * list. Like <tt>Semaphore</tt>, this disables interrupts rather than using
+ * a lock, so in steady state an exchange allocates nothing, and the memory
+ * used is bounded by the most tags ever waited on at once.
  */
 public class Rendezvous {
     /**
      * Allocate a new Rendezvous.
      */
-    HashMap<Integer, Integer> valueMappy;
-    HashMap<Integer, Integer> usedMappy;
-    
-    HashMap<Integer,Lock> groupLocky;
-    HashMap<Integer, Condition2> groupCondy;
-
     public Rendezvous () {
-        valueMappy = new HashMap<>();
-        usedMappy = new HashMap<>();
-
-        groupLocky = new HashMap<>();
-        groupCondy = new HashMap<>();
+        keys = new int[minCapacity];
+        slots = new Slot[minCapacity];
     }
 
     /**
@@ -42,65 +40,135 @@ public class Rendezvous {
      * @param value the integer to exchange.
      */
     public int exchange (int tag, int value) {
-        if(valueMappy.containsKey(tag) && usedMappy.get(tag) > 0 ) {
-            if(!groupLocky.get(tag).isHeldByCurrentThread()) {
-                groupLocky.get(tag).acquire();
-                System.out.println(tag + " tag acquired lock");
-            }
-            int to_return = valueMappy.get(tag);
-            valueMappy.replace(tag, value);
-            //usedMappy.replace(tag, usedMappy.get(tag));
-            groupCondy.get(tag).wakeAll();
-            groupLocky.get(tag).release();
-            System.out.println(tag + " tag released lock");
-            return to_return;
+        boolean intStatus = Machine.interrupt().disable();
+
+        int index = find(tag);
+        Slot slot = slots[index];
+        int toReturn;
+
+        if (slot != null) {
+            // second to arrive: take the slot and hand over our value
+            remove(index);
+            toReturn = slot.value;
+            slot.value = value;
+            slot.waiter.ready();
         }
         else {
-            if(groupLocky.get(tag) == null) {
-                Lock locky = new Lock();
-                groupLocky.put(tag,locky);
-            }
-            if(groupCondy.get(tag) == null) {
-                Condition2 condy = new Condition2(groupLocky.get(tag));
-                groupCondy.put(tag,condy);
-            }
+            slot = freeSlots;
+            if (slot != null)
+                freeSlots = slot.next;
+            else
+                slot = new Slot();
+
+            slot.value = value;
+            slot.waiter = KThread.currentThread();
+            insert(index, tag, slot);
+
+            KThread.sleep();
+
+            // the partner has taken the slot out of the table
+            toReturn = slot.value;
+            slot.waiter = null;
+            slot.next = freeSlots;
+            freeSlots = slot;
+        }
 
+        Machine.interrupt().restore(intStatus);
+        return toReturn;
+    }
 
-            if(!groupLocky.get(tag).isHeldByCurrentThread()) {
-                groupLocky.get(tag).acquire();
-                System.out.println(tag + " tag acquired lock");
+    /**
+     * Return the index of <i>tag</i> in the table, or of the empty entry
+     * where it would go.
+     */
+    private int find(int tag) {
+        int mask = keys.length - 1;
+        int index = hash(tag) & mask;
+        while (slots[index] != null && keys[index] != tag)
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    private void insert(int index, int tag, Slot slot) {
+        keys[index] = tag;
+        slots[index] = slot;
+        numSlots++;
+
+        if (numSlots * 3 > keys.length * 2)
+            resize(keys.length * 2);
+    }
+
+    /**
+     * Empty the entry at <i>index</i>, moving back the entries after it that
+     * would no longer be found, and shrink the table if it is mostly empty.
+     */
+    private void remove(int index) {
+        int mask = keys.length - 1;
+        slots[index] = null;
+        numSlots--;
+
+        int hole = index;
+        for (int i = (index + 1) & mask; slots[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            // move the entry back if the hole is between its home and it
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                slots[hole] = slots[i];
+                slots[i] = null;
+                hole = i;
             }
-            valueMappy.put(tag, value);
-            if(usedMappy.get(tag) == null) {
-                usedMappy.put(tag,0);
+        }
+
+        if (keys.length > minCapacity && numSlots * 8 < keys.length)
+            resize(keys.length / 2);
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Slot[] oldSlots = slots;
+
+        keys = new int[capacity];
+        slots = new Slot[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != null) {
+                int index = find(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                slots[index] = oldSlots[i];
             }
-            usedMappy.replace(tag,usedMappy.get(tag) + 1);
-            
-            groupCondy.get(tag).sleep();
-
-
-            usedMappy.replace(tag, usedMappy.get(tag) - 1);
-            int to_return = valueMappy.get(tag);
-            valueMappy.remove(tag);
-            groupLocky.get(tag).release();                
-            System.out.println(tag + " tag released lock");
-
-            return to_return;
-
-            //while(true) {
-                //if (usedMappy.get(tag) > 0) {
-                    
-                //} 
-                // else {
-                //     if(!groupLocky.get(tag).isHeldByCurrentThread()) {
-                //         groupLocky.get(tag).acquire();
-                //     }
-                //      groupCondy.get(tag).sleep();
-                // }
-            //}
         }
     }
 
+    private static int hash(int tag) {
+        int h = tag * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The value and thread left at a tag by the first thread to arrive.
+     */
+    private static class Slot {
+        int value;
+
+        KThread waiter;
+
+        /** The next slot on the free list. */
+        Slot next;
+    }
+
+    private static final int minCapacity = 16;
+
+    /**
+     * The tags with a waiting thread. <tt>keys[i]</tt> is only meaningful
+     * when <tt>slots[i]</tt> is not <tt>null</tt>.
+     */
+    private int[] keys;
+
+    private Slot[] slots;
+
+    private int numSlots = 0;
+
+    private Slot freeSlots = null;
+
      // Place Rendezvous test code inside of the Rendezvous class.
 
      public static void rendezTest1() {
@@ -257,10 +325,38 @@ public class Rendezvous {
     }
 
 
+    // Pairs of threads exchange over many distinct tags, some colliding in
+    // the table, then reuse the same tags for a second round.
+    private static void manyTagsTest() {
+        final Rendezvous r = new Rendezvous();
+        final int numTags = 200;
+        KThread[] threads = new KThread[numTags * 2];
+
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < numTags * 2; i++) {
+                final int tag = (i / 2) * 1024;
+                final int send = i;
+                threads[i] = new KThread( new Runnable () {
+                    public void run() {
+                        int recv = r.exchange (tag, send);
+                        Lib.assertTrue (recv == (send ^ 1), "Was expecting " + (send ^ 1) + " but received " + recv);
+                    }
+                    });
+                threads[i].fork();
+            }
+            for (int i = 0; i < numTags * 2; i++)
+                threads[i].join();
+        }
+
+        Lib.assertTrue(r.numSlots == 0 && r.keys.length == minCapacity);
+        System.out.println("Many tags test works");
+    }
+
     public static void selfTest() {
     // place calls to your Rendezvous tests that you implement here
         //rendezTest1();
         //ourRendeTest1();
         superDopeTest();
+        //manyTagsTest();
     }
 }
@@ -79,6 +79,15 @@ public class RoundRobinScheduler extends Scheduler {
 			Lib.assertTrue(waitQueue.isEmpty());
 		}
 
+		/**
+		 * Test whether any threads are waiting for access.
+		 * 
+		 * @return <tt>true</tt> if no threads are waiting.
+		 */
+		public boolean isEmpty() {
+			return waitQueue.isEmpty();
+		}
+
 		/**
 		 * Print out the contents of the queue.
 		 */
@@ -12,6 +12,8 @@ public abstract class Scheduler {
 	 * Allocate a new scheduler.
 	 */
 	public Scheduler() {
+		quantum = Config.getInteger("ThreadedKernel.quantum", 0);
+		Lib.assertTrue(quantum >= 0);
 	}
 
 	/**
@@ -151,4 +153,24 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Return how long the specified thread may run before a timer interrupt
+	 * preempts it. Timer interrupts that arrive earlier in its time slice do
+	 * not preempt it. Must be called with interrupts disabled.
+	 * 
+	 * <p>
+	 * By default every thread gets <tt>ThreadedKernel.quantum</tt> ticks,
+	 * which is 0 unless configured, so that every timer interrupt preempts.
+	 * 
+	 * @param thread the thread to get the time slice of.
+	 * @return the length of the thread's time slice, in ticks.
+	 */
+	public long getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return quantum;
+	}
+
+	/** The base time slice, from <tt>ThreadedKernel.quantum</tt>. */
+	protected long quantum;
 }
@@ -10,11 +10,19 @@ import nachos.machine.*;
  */
 public class SquadMatch {
     
+    /* The three kinds of player, as passed to the metrics methods. */
+    public static final int roleWarrior = 0,
+	roleWizard = 1,
+	roleThief = 2;
+
     /**
      * Allocate a new SquadMatch for matching players of different
      * abilities into a squad to play a match.
      */
     public SquadMatch () {
+        lock = new Lock();
+        for (int role = 0; role < numRoles; role++)
+            squadFormed[role] = new Condition2(lock);
     }
 
     /**
@@ -26,6 +34,7 @@ public class SquadMatch {
      * be assigned to only one match.
      */
     public void warrior () {
+        join(roleWarrior);
     }
 
     /**
@@ -37,6 +46,7 @@ public class SquadMatch {
      * be assigned to only one match.
      */
     public void wizard () {
+        join(roleWizard);
     }
 
     /**
@@ -48,5 +58,159 @@ public class SquadMatch {
      * be assigned to only one match.
      */
     public void thief () {
+        join(roleThief);
+    }
+
+    /**
+     * Return the number of squads formed so far.
+     */
+    public long getSquadsFormed () {
+        lock.acquire();
+        long n = squadsFormed;
+        lock.release();
+        return n;
+    }
+
+    /**
+     * Return the number of players of <i>role</i> that are waiting
+     * for a squad.
+     */
+    public int getQueueDepth (int role) {
+        Lib.assertTrue(role >= 0 && role < numRoles);
+
+        lock.acquire();
+        int depth = (int) Math.max(0, arrived[role] - squadsFormed);
+        lock.release();
+        return depth;
+    }
+
+    /**
+     * Return the mean number of ticks that the players of <i>role</i>
+     * who have returned spent waiting for their squad, or 0 if none
+     * has.
+     */
+    public double getAverageWaitTicks (int role) {
+        Lib.assertTrue(role >= 0 && role < numRoles);
+
+        lock.acquire();
+        double average = (numReturned[role] == 0 ? 0
+                          : (double) waitTicks[role] / numReturned[role]);
+        lock.release();
+        return average;
+    }
+
+    /**
+     * Wait in the queue of <i>role</i> until a squad is formed.  The
+     * n-th player of each role is in the n-th squad, so a player
+     * only has to remember its place in the queue.  The player that
+     * completes a squad wakes exactly one player of each other role:
+     * the first one waiting, which is the one in that squad, since
+     * players of a role go to sleep in the order they arrive.
+     *
+     * @return the number of the squad joined, from 0.
+     */
+    private long join (int role) {
+        long start = Machine.timer().getTime();
+
+        lock.acquire();
+
+        long squad = arrived[role]++;
+        if (squad == squadsFormed && arrived[(role + 1) % numRoles] > squad
+            && arrived[(role + 2) % numRoles] > squad) {
+            squadsFormed++;
+            squadFormed[(role + 1) % numRoles].wake();
+            squadFormed[(role + 2) % numRoles].wake();
+        }
+        else {
+            while (squad >= squadsFormed)
+                squadFormed[role].sleep();
+        }
+
+        waitTicks[role] += Machine.timer().getTime() - start;
+        numReturned[role]++;
+
+        lock.release();
+        return squad;
+    }
+
+    // Place SquadMatch test code inside of the SquadMatch class.
+
+    // Players of the three roles arrive unevenly: each squad must get
+    // one player of every role, and the warriors left over must stay
+    // queued until wizards and thieves arrive for them.
+    private static void squadTest () {
+        final SquadMatch match = new SquadMatch();
+        final int numSquads = 30, extraWarriors = 4;
+        final int[][] membersOfSquad = new int[numSquads + extraWarriors][numRoles];
+        int numPlayers = numRoles * numSquads + extraWarriors;
+        KThread[] players = new KThread[numPlayers];
+
+        for (int i = 0; i < numPlayers; i++) {
+            // all the warriors first, then thieves and wizards
+            // alternately
+            final int role = (i < numSquads + extraWarriors ? roleWarrior
+                              : i % 2 == 0 ? roleThief : roleWizard);
+            players[i] = new KThread( new Runnable () {
+                public void run() {
+                    membersOfSquad[(int) match.join(role)][role]++;
+                }
+                });
+            players[i].setName("squad player " + i);
+            players[i].fork();
+        }
+
+        while (match.getSquadsFormed() < numSquads
+               || match.getQueueDepth(roleWarrior) != extraWarriors)
+            KThread.yield();
+        Lib.assertTrue(match.getQueueDepth(roleWizard) == 0
+                       && match.getQueueDepth(roleThief) == 0);
+
+        for (int i = 0; i < extraWarriors; i++) {
+            new KThread( new Runnable () {
+                public void run() {
+                    membersOfSquad[(int) match.join(roleWizard)][roleWizard]++;
+                }
+                }).setName("late wizard").fork();
+            membersOfSquad[(int) match.join(roleThief)][roleThief]++;
+        }
+        for (int i = 0; i < numPlayers; i++)
+            players[i].join();
+
+        for (int squad = 0; squad < membersOfSquad.length; squad++)
+            for (int role = 0; role < numRoles; role++)
+                Lib.assertTrue(membersOfSquad[squad][role] == 1);
+        Lib.assertTrue(match.getSquadsFormed() == numSquads + extraWarriors);
+        Lib.assertTrue(match.getQueueDepth(roleWarrior) == 0);
+        Lib.assertTrue(match.getAverageWaitTicks(roleWarrior) > 0);
+
+        System.out.println("squadTest passed: average wait warrior "
+                           + Math.round(match.getAverageWaitTicks(roleWarrior))
+                           + " wizard "
+                           + Math.round(match.getAverageWaitTicks(roleWizard))
+                           + " thief "
+                           + Math.round(match.getAverageWaitTicks(roleThief))
+                           + " ticks");
+    }
+
+    public static void selfTest() {
+        squadTest();
     }
+
+    private static final int numRoles = 3;
+
+    private Lock lock;
+
+    /** Where the players of each role wait for their squad. */
+    private Condition2[] squadFormed = new Condition2[numRoles];
+
+    /** The number of players of each role that have ever arrived. */
+    private long[] arrived = new long[numRoles];
+
+    /** The number of squads formed; squads are numbered in order. */
+    private long squadsFormed = 0;
+
+    /** The total ticks waited by the players of each role that returned. */
+    private long[] waitTicks = new long[numRoles];
+
+    private long[] numReturned = new long[numRoles];
 }
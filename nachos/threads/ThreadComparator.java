@@ -3,11 +3,10 @@ import java.util.Comparator;
 
 public class ThreadComparator implements Comparator<MyPair> {
     public int compare(MyPair t1, MyPair t2) {
-        if(t1.getWakeTime() > t2.getWakeTime()) {
-            return 1;
-        }
-        else {
-            return -1;
+        int byTime = Long.compare(t1.getWakeTime(), t2.getWakeTime());
+        if (byTime != 0) {
+            return byTime;
         }
+        return Long.compare(t1.sequence, t2.sequence);
     }
 }
@@ -98,6 +98,42 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Notify this thread queue that a thread has received access that it
+	 * shares with other threads, such as a reader holding a reader-writer
+	 * lock. If the queue transfers priority, the threads waiting for access
+	 * then donate priority to every thread sharing it, as well as to the
+	 * thread that last acquired it.
+	 * 
+	 * <p>
+	 * The default implementation does nothing, for schedulers that donate
+	 * priority to one thread at most.
+	 * 
+	 * @param thread the thread that has received shared access.
+	 */
+	public void acquireShared(KThread thread) {
+	}
+
+	/**
+	 * Notify this thread queue that a thread no longer has access, either
+	 * shared or as the thread that last acquired it, so that waiting threads
+	 * stop donating priority to it.
+	 * 
+	 * <p>
+	 * The default implementation does nothing.
+	 * 
+	 * @param thread the thread giving up access.
+	 */
+	public void release(KThread thread) {
+	}
+
+	/**
+	 * Test whether any threads are waiting for access.
+	 * 
+	 * @return <tt>true</tt> if no threads are waiting.
+	 */
+	public abstract boolean isEmpty();
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
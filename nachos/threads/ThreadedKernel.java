@@ -47,12 +47,21 @@ public class ThreadedKernel extends Kernel {
 	 */
 	public void selfTest() {
 		//KThread.selfTest();
+		//KThread.yieldBenchmark(100000);
 		//Semaphore.selfTest();
 		//SynchList.selfTest();
 		//Alarm.selfTest();
 		//Condition.selfTest();
 		//Condition2.selfTest();
 		//Rendezvous.selfTest();
+		//Communicator.selfTest();
+		//Future.selfTest();
+		//GameMatch.selfTest();
+		//SquadMatch.selfTest();
+		//ReadWriteLock.selfTest();
+		//PriorityScheduler.selfTest();
+		//LotteryScheduler.selfTest();
+		//MLFQScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -90,7 +99,7 @@ public class ThreadedKernel extends Kernel {
 
 	private static Condition2 dummy4 = null;
 
-        //private static Communicator dummy5 = null;
+	private static Communicator dummy5 = null;
 
 	private static Rider dummy6 = null;
 
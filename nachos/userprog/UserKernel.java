@@ -19,8 +19,17 @@ public class UserKernel extends ThreadedKernel {
 
 	public static HashMap<Integer, UserProcess> mappy = null;
 
+	/** Guards <tt>mappy</tt> and <tt>keys</tt>, which are mostly read. */
+	public static ReadWriteLock mappyLock = null;
+
 	public static int numProc = 0;
 
+	/**
+	 * Whether the exit of the last process halts the machine. The benchmark
+	 * driver clears it, so that it can run the next program.
+	 */
+	public static boolean haltOnLastExit = true;
+
 	public static ArrayList<Integer> keys = null;
 
 	public static ArrayList<Integer> finished_keys = null;
@@ -54,6 +63,9 @@ public class UserKernel extends ThreadedKernel {
 		if(locky == null) {
 			locky = new Lock();
 		}
+		if(mappyLock == null) {
+			mappyLock = new ReadWriteLock();
+		}
 		if(keys == null) {
 			keys = new ArrayList<>();
 		}
@@ -91,40 +103,52 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	public static UserProcess getHashMap(int key) {
+		mappyLock.acquireRead();
 		UserProcess output = mappy.get(key);
 		//mappy.remove(key);
 		//mappy.replace(key, null);
+		mappyLock.releaseRead();
 		return output;
 	}
 
 	public static void printHashMap() {
+		mappyLock.acquireRead();
 		for(int key: keys) {
 			System.out.println(mappy.get(key).processID);
 		}
-		
+		mappyLock.releaseRead();
 	}
 
 	public static void removeProcess(int key) {
-		keys.remove(key);
+		mappyLock.acquireWrite();
+		keys.remove(Integer.valueOf(key));
 		mappy.remove(key);
 		finished_keys.add(key);
+		mappyLock.releaseWrite();
 	}
 
 	public static void inputHashMap(int key, UserProcess up) {
+		mappyLock.acquireWrite();
 		keys.add(key);
 		mappy.put(key, up);
+		mappyLock.releaseWrite();
 	}
 
 	public static int numProcesses() {
-		return keys.size();
+		mappyLock.acquireRead();
+		int output = keys.size();
+		mappyLock.releaseRead();
+		return output;
 	}
 
 	/**
-	 * Test the console device.
+	 * Test the process map and the console device.
 	 */
 	public void selfTest() {
 		super.selfTest();
 
+		//processMapTest();
+
 		/* Skip the console test by default to avoid having to
 		 * type 'q' when running Nachos.  To use the test,
 		 * just remove the return. */
@@ -144,6 +168,33 @@ public class UserKernel extends ThreadedKernel {
 		System.out.println("");
 	}
 
+	/**
+	 * Remove a process from the middle of the process map. Process IDs are
+	 * keys, not indices into <tt>keys</tt>, so removing one must not disturb
+	 * the others, however large the IDs are.
+	 */
+	private static void processMapTest() {
+		int before = numProcesses();
+		int[] ids = { 1000, 1001, 1002 };
+		for (int id : ids)
+			inputHashMap(id, null);
+
+		removeProcess(ids[1]);
+		Lib.assertTrue(numProcesses() == before + 2);
+		Lib.assertTrue(keys.contains(ids[0]) && !keys.contains(ids[1])
+				&& keys.contains(ids[2]));
+		Lib.assertTrue(!mappy.containsKey(ids[1]));
+		Lib.assertTrue(finished_keys.contains(ids[1]));
+
+		removeProcess(ids[0]);
+		removeProcess(ids[2]);
+		Lib.assertTrue(numProcesses() == before);
+		for (int id : ids)
+			finished_keys.remove(Integer.valueOf(id));
+
+		System.out.println("UserKernel process map test passed");
+	}
+
 	/**
 	 * Returns the current process.
 	 * 
@@ -187,6 +238,9 @@ public class UserKernel extends ThreadedKernel {
 	public void run() {
 		super.run();
 
+		if (runBenchmarks())
+			terminate();
+
 		UserProcess process = UserProcess.newUserProcess();
 
 		String shellProgram = Machine.getShellProgramName();
@@ -206,6 +260,75 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Run the programs listed, separated by commas, in
+	 * <tt>Kernel.benchmarkPrograms</tt>, if any, one after the other, each in
+	 * a new process, waiting for each to exit. For each program, print the
+	 * wall-clock time, the MIPS instructions it executed, the instructions per
+	 * host second, and its page faults, TLB misses and swap traffic.
+	 * 
+	 * <p>
+	 * The programs are looked up in the file system before any is run, and
+	 * the kernel fails if one is missing or cannot be loaded. The benchmark
+	 * configs read them from <tt>nachos/test/bench</tt>, which
+	 * <tt>make bench</tt> in <tt>nachos/test</tt> fills once.
+	 * 
+	 * @return <tt>false</tt> if no benchmark programs are configured.
+	 */
+	protected boolean runBenchmarks() {
+		String programs = Config.getString("Kernel.benchmarkPrograms");
+		if (programs == null)
+			return false;
+
+		String missing = "";
+		for (String program : programs.split(",")) {
+			OpenFile file = fileSystem.open(program.trim(), false);
+			if (file == null)
+				missing += " " + program.trim();
+			else
+				file.close();
+		}
+		if (missing.length() > 0) {
+			Lib.assertNotReached("Could not find benchmark programs:"
+					+ missing + ". Build them with 'make bench' in"
+					+ " nachos/test, or copy prebuilt ones into the directory"
+					+ " named by FileSystem.testDirectory.");
+		}
+
+		haltOnLastExit = false;
+
+		for (String program : programs.split(",")) {
+			long wallStart = System.nanoTime();
+			Stats before = Machine.getStats();
+
+			program = program.trim();
+			UserProcess process = UserProcess.newUserProcess();
+			if (!process.execute(program, new String[] { program }))
+				Lib.assertNotReached("Could not run '" + program + "'.");
+			process.thread.join();
+
+			long wall = System.nanoTime() - wallStart;
+			Stats after = Machine.getStats();
+			long instructions = (after.userTicks - before.userTicks)
+					/ Stats.UserTick;
+
+			System.out.println(program + ": " + instructions
+					+ " instructions in " + wall / 1000000 + " ms, "
+					+ Math.round(instructions * 1e3 / Math.max(wall, 1))
+					+ " MIPS, page faults "
+					+ (after.numPageFaults - before.numPageFaults)
+					+ ", TLB misses "
+					+ (after.numTLBMisses - before.numTLBMisses)
+					+ ", swap reads "
+					+ (after.numSwapReads - before.numSwapReads)
+					+ ", swap writes "
+					+ (after.numSwapWrites - before.numSwapWrites));
+		}
+
+		haltOnLastExit = true;
+		return true;
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
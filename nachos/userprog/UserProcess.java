@@ -654,7 +654,7 @@ public class UserProcess {
 		UserKernel.removeProcess(processID);
 
 		
-		if(UserKernel.numProc == 0) {
+		if(UserKernel.numProc == 0 && UserKernel.haltOnLastExit) {
 			Kernel.kernel.terminate();
 		}
 
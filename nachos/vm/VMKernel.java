@@ -135,6 +135,9 @@ public class VMKernel extends UserKernel {
 	 */
 	public void run() {
 		//super.run();
+		if (runBenchmarks())
+			terminate();
+
 		VMProcess process = (VMProcess) VMProcess.newUserProcess();
 
 		String shellProgram = Machine.getShellProgramName();
@@ -248,6 +251,10 @@ public class VMKernel extends UserKernel {
 		}
 		if(IPTE.TE.dirty || !spnExisted) {
 			swap.write(spn * pageSize, memory, ppn * pageSize, pageSize); // --------------------------------------------------------------
+			Machine.incrNumSwapWrites();
+		}
+		else {
+			Machine.incrNumSwapSkips();
 		}
 		IPTE.TE.valid = false;
 		IPT.remove(IPTE);
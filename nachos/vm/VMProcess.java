@@ -216,6 +216,7 @@ public class VMProcess extends UserProcess {
 			int curr_spn = swapTable.get(page_to_load);
 			pageLock.release();
 			VMKernel.swap.read(curr_spn * pageSize, memory,curr_ppn * pageSize, pageSize);
+			Machine.incrNumSwapReads();
 			pageLock.acquire();
 		}
 		else {	